@@ -0,0 +1,7 @@
+# builds and runs the JMH benchmarks in benchmarks/ against an in-memory world
+# needs ../Bukkit.jar and the JMH jars (jmh-core, jmh-generator-annprocess,
+# jopt-simple, commons-math3) in ../jmh/, extra arguments are passed to JMH
+mkdir -p benchmarks/classes
+javac -cp "../Bukkit.jar:../jmh/*" -d benchmarks/classes mindless728/FluidFlow/*.java sim/mindless728/FluidFlow/*.java benchmarks/mindless728/FluidFlow/*.java
+java -cp "benchmarks/classes:../Bukkit.jar:../jmh/*" org.openjdk.jmh.Main "$@"
+rm -r benchmarks/classes
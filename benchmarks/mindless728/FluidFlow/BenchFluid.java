@@ -0,0 +1,32 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Material;
+import org.bukkit.util.config.Configuration;
+
+/**
+ * a fluid that does nothing when it flows, for measuring the framework around it
+ *
+ * @author mindless728
+ */
+public class BenchFluid extends Fluid {
+	/**
+	 * @return water, the benchmarks never register it
+	 */
+	public Material getMaterial() {
+		return Material.WATER;
+	}
+
+	/**
+	 * does nothing
+	 *
+	 * @param block the fluid block that is trying to flow
+	 */
+	public void flow(FluidBlock block) {}
+
+	/**
+	 * does nothing
+	 *
+	 * @param config the configuration file of the fluid
+	 */
+	public void init(Configuration config) {}
+}
@@ -0,0 +1,95 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.util.config.Configuration;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * measures a full server tick of BlockChanger.run against a large backlog, the
+ * changes counter gives the blocks applied per second of tick budget
+ *
+ * @author mindless728
+ */
+@State(Scope.Thread)
+public class BlockChangerBenchmark {
+	/** the backlog kept in front of every tick */
+	public static final int BACKLOG = 200000;
+
+	/** the run time of a tick in nano-seconds */
+	public static final int RUN_TIME = 1000000;
+
+	/** the world the changes are made in */
+	private VoxelWorld world;
+
+	/** the changes of the single fluid */
+	private ChangedBlocks changes;
+
+	/** the block changer being measured */
+	private BlockChanger changer;
+
+	/** the blocks to change, spread over a 1024x1024 area */
+	private FluidBlock[] blocks;
+
+	/** the next block to add to the backlog */
+	private int next;
+
+	/** the blocks applied in total */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Applied {
+		public long changes;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		HashMap<Fluid, ChangedBlocks> blockChanges = new HashMap<Fluid, ChangedBlocks>();
+		Configuration config;
+		File file;
+		Random r = new Random(728);
+
+		world = new VoxelWorld("bench");
+		blocks = new FluidBlock[BACKLOG * 2];
+		for(int i = 0; i < blocks.length; ++i)
+			blocks[i] = new FluidBlock(new Location(world.getWorld(), r.nextInt(1024), r.nextInt(VoxelWorld.HEIGHT), r.nextInt(1024)));
+
+		//the settings come from a throw away file so nothing needs the plugin enabled
+		file = File.createTempFile("FluidFlowBench", ".yml");
+		file.deleteOnExit();
+		config = new Configuration(file);
+		config.load();
+		config.setProperty("BlockChanger.runTime", RUN_TIME);
+
+		changes = new ChangedBlocks();
+		blockChanges.put(new BenchFluid(), changes);
+		changer = new BlockChanger(blockChanges, config, null);
+	}
+
+	@Setup(Level.Invocation)
+	public void fill() {
+		//top the backlog back up, alternating materials so the blocks really change
+		Material type = (next / blocks.length) % 2 == 0 ? Material.WATER : Material.AIR;
+		while(changes.size() < BACKLOG) {
+			changes.add(blocks[next++ % blocks.length], type);
+			if(next % blocks.length == 0)
+				type = (type == Material.WATER) ? Material.AIR : Material.WATER;
+		}
+	}
+
+	@Benchmark
+	public void tick(Applied applied) {
+		long before = world.getChangeCount();
+		changer.run();
+		applied.changes += world.getChangeCount() - before;
+	}
+}
@@ -0,0 +1,92 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * measures adding, removing and looking up changed blocks
+ *
+ * @author mindless728
+ */
+@State(Scope.Thread)
+public class ChangedBlocksBenchmark {
+	/** the amount of blocks used by each invocation */
+	public static final int BLOCKS = 4096;
+
+	/** the blocks that are looked up, spread over a 256x256 area */
+	private FluidBlock[] blocks;
+
+	/** the blocks that are added and removed, away from the looked up ones since all changes share one index */
+	private FluidBlock[] others;
+
+	/** the changed blocks that are filled before the lookups */
+	private ChangedBlocks full;
+
+	/** the changed blocks the add/remove benchmarks use */
+	private ChangedBlocks changes;
+
+	/** a position that is never changed */
+	private long missing;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		VoxelWorld world = new VoxelWorld("bench");
+		Random r = new Random(728);
+
+		blocks = new FluidBlock[BLOCKS];
+		others = new FluidBlock[BLOCKS];
+		for(int i = 0; i < BLOCKS; ++i) {
+			blocks[i] = new FluidBlock(new Location(world.getWorld(), r.nextInt(256), r.nextInt(VoxelWorld.HEIGHT), r.nextInt(256)));
+			others[i] = new FluidBlock(new Location(world.getWorld(), 512 + r.nextInt(256), r.nextInt(VoxelWorld.HEIGHT), r.nextInt(256)));
+		}
+
+		full = new ChangedBlocks();
+		for(FluidBlock fb : blocks)
+			full.add(fb, Material.WATER);
+
+		missing = BlockKey.pack(BlockKey.getWorldId(world.getWorld()), 1000, 64, 1000);
+		changes = new ChangedBlocks();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public int addRemove() {
+		int ret = 0;
+		for(FluidBlock fb : others)
+			changes.add(fb, Material.WATER);
+		while(changes.remove() != null)
+			++ret;
+		return ret;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public void addCoalesced() {
+		//every block is already pending so only the type is replaced
+		for(FluidBlock fb : blocks)
+			full.add(fb, Material.LAVA);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCKS)
+	public int getTypeHit() {
+		int ret = 0;
+		for(FluidBlock fb : blocks)
+			ret += ChangedBlocks.getPendingTypeId(fb.key);
+		return ret;
+	}
+
+	@Benchmark
+	public int getTypeMiss() {
+		return ChangedBlocks.getPendingTypeId(missing);
+	}
+}
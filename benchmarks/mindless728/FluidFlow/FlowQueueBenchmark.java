@@ -0,0 +1,61 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * measures Fluid.flowChange with several threads adding and removing flows at once
+ *
+ * @author mindless728
+ */
+@State(Scope.Group)
+public class FlowQueueBenchmark {
+	/** the amount of different blocks flowed */
+	public static final int BLOCKS = 1 << 16;
+
+	/** the fluid whose flows are changed */
+	private BenchFluid fluid;
+
+	/** the blocks to flow */
+	private FluidBlock[] blocks;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		VoxelWorld world = new VoxelWorld("bench");
+		Random r = new Random(728);
+
+		fluid = new BenchFluid();
+		blocks = new FluidBlock[BLOCKS];
+		for(int i = 0; i < BLOCKS; ++i)
+			blocks[i] = new FluidBlock(new Location(world.getWorld(), r.nextInt(512), r.nextInt(VoxelWorld.HEIGHT), r.nextInt(512)));
+	}
+
+	/** the position of each adding thread in the blocks */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	@Benchmark
+	@Group("flowChange")
+	@GroupThreads(3)
+	public FluidBlock add(Cursor cursor) {
+		return fluid.flowChange(blocks[cursor.next++ & (BLOCKS - 1)]);
+	}
+
+	@Benchmark
+	@Group("flowChange")
+	@GroupThreads(1)
+	public FluidBlock remove() {
+		return fluid.flowChange(null);
+	}
+}
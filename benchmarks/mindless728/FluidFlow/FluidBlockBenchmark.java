@@ -0,0 +1,100 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Location;
+import org.bukkit.block.BlockFace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * measures creating, hashing and comparing fluid blocks, and finding their neighbours
+ *
+ * @author mindless728
+ */
+@State(Scope.Thread)
+public class FluidBlockBenchmark {
+	/** the location the blocks are created at */
+	private Location loc;
+
+	/** two different objects for the same block */
+	private FluidBlock a, b;
+
+	/** a block next to a */
+	private FluidBlock c;
+
+	/** the faces used to find the neighbours */
+	private BlockFace[] faces = {BlockFace.DOWN, BlockFace.NORTH, BlockFace.EAST, BlockFace.SOUTH, BlockFace.WEST, BlockFace.UP};
+
+	/** the buffer the neighbours are written into */
+	private long[] buffer = new long[Neighbourhood.CUBE.size()];
+
+	/** the visitor the neighbours are passed to */
+	private KeyVisitor visitor;
+
+	/** where the visitor sends the keys so they are not optimized away */
+	private Blackhole hole;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		VoxelWorld world = new VoxelWorld("bench");
+
+		loc = new Location(world.getWorld(), 1234, 64, -5678);
+		a = new FluidBlock(loc);
+		b = new FluidBlock(new Location(world.getWorld(), 1234, 64, -5678));
+		c = new FluidBlock(new Location(world.getWorld(), 1235, 64, -5678));
+	}
+
+	@Setup(Level.Trial)
+	public void setupVisitor(Blackhole bh) {
+		hole = bh;
+		visitor = new KeyVisitor() {
+			public boolean visit(long key) {
+				hole.consume(key);
+				return true;
+			}
+		};
+	}
+
+	@Benchmark
+	public FluidBlock construct() {
+		return new FluidBlock(loc);
+	}
+
+	@Benchmark
+	public int hash() {
+		return a.hashCode();
+	}
+
+	@Benchmark
+	public boolean equalsSame() {
+		return a.equals(b);
+	}
+
+	@Benchmark
+	public boolean equalsNeighbour() {
+		return a.equals(c);
+	}
+
+	@Benchmark
+	public int facesList() {
+		return a.getBlockFaces(faces).size();
+	}
+
+	@Benchmark
+	public long facesFill() {
+		int n = Neighbourhood.FACES.fill(a.key, buffer);
+		long ret = 0;
+		for(int i = 0; i < n; ++i)
+			ret ^= buffer[i];
+		return ret;
+	}
+
+	@Benchmark
+	public int cubeVisit() {
+		return Neighbourhood.CUBE.visit(a.key, visitor);
+	}
+}
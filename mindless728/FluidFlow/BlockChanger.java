@@ -1,39 +1,260 @@
 package mindless728.FluidFlow;
 
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.util.config.Configuration;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Changes the blocks from the asynchronous threads that the fluids flow int
  *
+ * the blocks are changed a chunk at a time, chunks that are not loaded are
+ * skipped until the next server tick instead of being loaded
+ *
+ * the fluids take turns by deficit round robin, each turn a fluid is given its
+ * weight times changeCountPerIter more changes to make and keeps what it doesn't
+ * use while it still has changes, so busy fluids get a share in line with their
+ * weights, the block changer stops as soon as no fluid has a change it can make
+ *
+ * the changes in chunks that aren't loaded wait until the chunk load event, the
+ * flows that read those chunks wait with them
+ *
+ * the chunks are changed in the order they got their first change, or in priority
+ * mode they are put in order every so often by each fluid's chunk priority, by
+ * default the distance to the nearest online player
+ *
+ * the time each change takes is measured and averaged by the materials it is
+ * between and whether a player is near, see ChangeCost, a change is only started
+ * when its guessed cost still fits in the tick's budget so the block changer stops
+ * on the budget instead of a whole round of changes past it, the first change of
+ * a tick is always made so a slow kind of change can't hold up everything
+ *
+ * the changes are made through Block.setType, or in chunk mode written straight
+ * into the chunks with one relight and resend per chunk, see ChunkWriter
+ *
+ * each tick the fluids over their limits are given a chance to get back under
+ * them, see Fluid.relieve
+ *
  * @author mindless728
  */
-public class BlockChanger implements Runnable {
+public class BlockChanger implements Runnable, BlockChangerMBean {
 	/** the mapping of the fluids to their respective changed blocks */
 	private HashMap<Fluid, ChangedBlocks> blockChanges;
 
-	/** the amount of time per server tick the block changer runs for in nano-seconds */
+	/** the amount of time per server tick the block changer runs for in nano-seconds, used by fixed mode */
 	private int runTime = 10000000;
 
+	/** decides the amount of time the block changer runs for each server tick */
+	private TickBudget budget;
+
+	/** the writer mode that changes every block through Block.setType */
+	public static final String BLOCK = "block";
+
+	/** the writer mode that writes the changes straight into the chunks, see ChunkWriter */
+	public static final String CHUNK = "chunk";
+
+	/** makes the changes of each chunk */
+	private BlockWriter writer;
+
+	/** the running averages of how long the changes take */
+	private ChangeCost cost;
+
+	/** the amount of changes made so far this tick */
+	private int made;
+
+	/** whether or not the budget for this tick is used up */
+	private boolean full;
+
 	/** the amount of blocks that are changed per round through the block changer */
 	private int changeCountPerIter = 1000;
 
-	/** the FluidFlow plugin object */
-	FluidFlow plugin;
-	
+	/** the copies of the chunks the fluids read from, kept up to date with the changes */
+	private ChunkCache cache;
+
+	/** the time the block changer ran for last tick in nano-seconds */
+	private volatile long lastRunTime;
+
+	/** the averaged time the block changer runs for each tick in nano-seconds */
+	private volatile double averageRunTime;
+
+	/** the amount of changes made last tick */
+	private volatile int lastChangeCount;
+
+	/** the amount of changes waiting at the start of last tick */
+	private volatile int lastBacklog;
+
+	/** the fluids that were deregistered and still have changes to make, handed over from any thread */
+	private ConcurrentLinkedQueue<Fluid> retiring = new ConcurrentLinkedQueue<Fluid>();
+
+	/** the fluids whose last changes are being made, only used by the server thread */
+	private LinkedList<Fluid> draining = new LinkedList<Fluid>();
+
+	/** the order mode that makes the changes in the order they came in */
+	public static final String FIFO = "fifo";
+
+	/** the order mode that makes the changes in order of the fluids' chunk priorities */
+	public static final String PRIORITY = "priority";
+
+	/** whether or not the changes are made in priority order */
+	private boolean prioritized;
+
+	/** the amount of ticks between putting the chunks back in priority order */
+	private int priorityInterval = 20;
+
+	/** the amount of ticks until the chunks are put in priority order again */
+	private int untilPrioritize;
+
+	/** the distance of the chunks to the nearest online player */
+	private PlayerProximity proximity = new PlayerProximity();
+
+	/** the server to get the online players from, null if there is none */
+	private Server server;
+
+	/** the turns of the fluids, kept in step with the mapping of changed blocks, only used by the server thread */
+	private ArrayList<Share> shares = new ArrayList<Share>();
+
+	/** the index of the share whose turn is next */
+	private int next;
+
+	/** whether or not the next share's turn was cut off by the end of the last tick */
+	private boolean midTurn;
 
 	/**
 	 * Default constructor taking in the mapping from fluids to the changed blocks
 	 *
 	 * @param bc the mapping from fluids to changed blocks
+	 * @param p the FluidFlow plugin, its configuration holds the settings
 	 */
 	public BlockChanger(HashMap<Fluid, ChangedBlocks> bc, FluidFlow p) {
+		this(bc, p.getConfig(), p.getChunkCache());
+		server = p.getServer();
+	}
+
+	/**
+	 * Constructor taking the configuration to read the settings from, for running
+	 * the block changer without the plugin being enabled
+	 *
+	 * @param bc the mapping from fluids to changed blocks
+	 * @param config the configuration holding the settings
+	 * @param cc the copies of the chunks the fluids read from, null if there are none
+	 */
+	public BlockChanger(HashMap<Fluid, ChangedBlocks> bc, Configuration config, ChunkCache cc) {
 		blockChanges = bc;
-		plugin = p;
+		cache = cc;
 
-		runTime = plugin.getConfig().getInt("BlockChanger.runTime", runTime);
-		changeCountPerIter = plugin.getConfig().getInt("BlockChanger.changeCountPerIter", changeCountPerIter);
-		plugin.getConfig().save();
+		runTime = config.getInt("BlockChanger.runTime", runTime);
+		changeCountPerIter = config.getInt("BlockChanger.changeCountPerIter", changeCountPerIter);
+		prioritized = PRIORITY.equalsIgnoreCase(config.getString("BlockChanger.order", FIFO));
+		priorityInterval = Math.max(1, config.getInt("BlockChanger.priority.interval", priorityInterval));
+		budget = new TickBudget(config, runTime);
+		cost = new ChangeCost(config);
+		writer = CHUNK.equalsIgnoreCase(config.getString("BlockChanger.writer", BLOCK)) ? new ChunkWriter() : new BlockSetter();
+		config.save();
+	}
+
+	/**
+	 * makes the rest of a deregistered fluid's changes over the next ticks, within
+	 * the normal budget, then drops the fluid once it has stopped and has none left,
+	 * the changes in chunks that aren't loaded are thrown away once it has stopped
+	 *
+	 * @param fluid the fluid that was told to stop
+	 */
+	public void retire(Fluid fluid) {
+		retiring.add(fluid);
+	}
+
+	/**
+	 * puts back the changes and flows that were waiting on a chunk, called on the
+	 * server thread when the chunk loads
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 */
+	public void chunkLoaded(long chunkKey) {
+		if(cache != null)
+			cache.load(chunkKey);
+		for(Fluid f : blockChanges.keySet()) {
+			blockChanges.get(f).unparkChunk(chunkKey);
+			f.unpark(chunkKey);
+		}
+	}
+
+	/**
+	 * marks a chunk unloaded so the fluids stop reading it, called on the server
+	 * thread when the chunk unloads
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 */
+	public void chunkUnloaded(long chunkKey) {
+		if(cache != null)
+			cache.unload(chunkKey);
+	}
+
+	/**
+	 * gets the amount of deregistered fluids that still have changes to make
+	 *
+	 * @return the amount of fluids being drained
+	 */
+	public int getDrainingCount() {
+		return draining.size() + retiring.size();
+	}
+
+	/**
+	 * gets the object that decides how long the block changer runs each tick
+	 *
+	 * @return the tick budget
+	 */
+	public TickBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * gets the running averages of how long the changes take
+	 *
+	 * @return the change cost model
+	 */
+	public ChangeCost getCost() {
+		return cost;
+	}
+
+	public double getAverageChangeCost() {
+		return cost.getAverage(false);
+	}
+
+	public double getAverageNearChangeCost() {
+		return cost.getAverage(true);
+	}
+
+	public double getAverageChunkCost() {
+		return cost.getChunkAverage();
+	}
+
+	public long getLastRunTime() {
+		return lastRunTime;
+	}
+
+	public double getAverageRunTime() {
+		return averageRunTime;
+	}
+
+	public int getLastChangeCount() {
+		return lastChangeCount;
+	}
+
+	public int getBacklog() {
+		return lastBacklog;
+	}
+
+	public long getRunTimeBudget() {
+		return budget.getRunTime();
+	}
+
+	public double getTps() {
+		return budget.getTps();
 	}
 
 	/**
@@ -41,27 +262,302 @@ public class BlockChanger implements Runnable {
 	 */
 	public void run() {
 		long start = System.nanoTime();
+		long time;
+		int backlog = 0;
 		ChangedBlocks temp;
-		FluidBlock block;
+		Share share;
+		int idle = 0;
+
+		made = 0;
+		full = false;
+
+		//copy the chunks the fluids asked for before any blocks change this tick
+		if(cache != null)
+			cache.tick();
+
+		//give the chunks that were not loaded last tick another chance
+		for(Fluid f : blockChanges.keySet()) {
+			temp = blockChanges.get(f);
+			temp.retryDeferred();
+			backlog += temp.size();
+			f.getMetrics().tick(start);
+		}
+
+		//find the players and put the chunks back in priority order every so often
+		if(--untilPrioritize <= 0) {
+			untilPrioritize = priorityInterval;
+			if(server != null)
+				proximity.update(server.getOnlinePlayers());
+			if(prioritized)
+				for(Fluid f : blockChanges.keySet())
+					blockChanges.get(f).prioritize(f.getChunkPriority(proximity));
+		}
+
+		//let the fluids over their limits catch up, drop or read back flows, then do their work between ticks
+		for(Fluid f : blockChanges.keySet()) {
+			f.relieve(proximity);
+			f.tick();
+		}
+
+		//measure the tick and get how long to run for
+		budget.tick(start, backlog);
+		time = budget.getRunTime();
+
+		//give the fluids their turns while there is time left, until every fluid in a row had nothing to change
+		updateShares();
+		while(idle < shares.size() && !full && System.nanoTime() - start < time) {
+			share = shares.get(next);
+
+			//a turn cut off by the last tick goes on without more changes, a new turn adds the fluid's share
+			if(!midTurn)
+				share.deficit += changeCountPerIter * share.weight;
+			midTurn = false;
+
+			change(share, start, time);
+
+			//out of time in the middle of the turn, pick it up next tick
+			if(share.deficit > 0 && !share.empty && full) {
+				midTurn = true;
+				break;
+			}
+
+			//a fluid with nothing to change doesn't keep its share
+			if(share.empty) {
+				share.deficit = 0;
+				++idle;
+			} else {
+				idle = 0;
+			}
+			next = (next + 1) % shares.size();
+		}
 
-		//loop while there is time left in this server tick
-		while((System.nanoTime() - start) < runTime) {
-			//loop through the fluids constantly
-			for(Fluid f : blockChanges.keySet()) {
-				//get the changed blocks from the fluid and lock it
-				temp = blockChanges.get(f);
-				synchronized(temp) {
-					//only change so many blocks per round to give fluids an "equal" share of time
-					for(int i = 0; i < changeCountPerIter; ++i) {
-						if(!temp.isEmpty()) {
-							//remove the changed block from the queue and set the type on the servers end
-							block = temp.remove();
-							block.loc.getBlock().setType(block.newType);
-						} else //if there are no changes, go to next fluid
-							break;
-					}
+		//drop the deregistered fluids that have stopped and have all of their changes made
+		retire();
+
+		//keep the numbers for the stats
+		time = System.nanoTime() - start;
+		lastRunTime = time;
+		averageRunTime += (time - averageRunTime) * 0.05;
+		lastChangeCount = made;
+		lastBacklog = backlog;
+	}
+
+	/**
+	 * makes a fluid's changes until its share is used up, it has no chunks left
+	 * that can be changed this tick or the next change won't fit in the time left,
+	 * marks the tick full when it runs out of time
+	 *
+	 * @param share the fluid's share
+	 * @param start when the tick started, from System.nanoTime
+	 * @param time how long the block changer can run for this tick
+	 */
+	private void change(Share share, long start, long time) {
+		ChangedBlocks temp = share.changes;
+		FluidMetrics metrics = share.fluid.getMetrics();
+		ChangedChunk changed;
+		FluidBlock next, block;
+		World world;
+		long now, then, overhead;
+		int oldId;
+		boolean near;
+
+		share.empty = false;
+		while(share.deficit > 0) {
+			//starting and finishing a chunk costs too, don't start one that won't fit
+			if(made > 0 && System.nanoTime() - start + cost.predictChunk() > time) {
+				full = true;
+				break;
+			}
+
+			//get the next chunk, a fluid with none left is done for the tick
+			if((changed = temp.pollChunk()) == null) {
+				share.empty = true;
+				break;
+			}
+
+			//don't force the chunk to load, park it until it loads
+			world = changed.getWorld();
+			if(world == null) {
+				temp.deferChunk(changed);
+				continue;
+			}
+			if(!world.isChunkLoaded(changed.getX(), changed.getZ())) {
+				temp.parkChunk(changed);
+				if(cache != null)
+					cache.unload(changed.key);
+				continue;
+			}
+
+			//change the chunk's blocks through the chunk instead of looking it up for every block
+			near = cost.isNear(proximity.getPriority(changed.key));
+			now = System.nanoTime();
+			writer.begin(world.getChunkAt(changed.getX(), changed.getZ()));
+			then = System.nanoTime();
+			overhead = then - now;
+			now = then;
+			while(share.deficit > 0 && (next = temp.peek(changed)) != null) {
+				//only start the change if its guessed cost and finishing the chunk fit in the time left, the old type is only known from a copy already taken
+				oldId = cache != null ? cache.peekTypeId(next.key) : LongIntMap.NO_VALUE;
+				if(made > 0 && now - start + cost.predict(oldId, ChangedBlocks.getPendingTypeId(next.key), near) + cost.predictChunk() > time) {
+					full = true;
+					break;
 				}
+				if((block = temp.remove(changed, cache)) == null)
+					break;
+
+				//the peeked block was already changed, the next one's old type isn't known since its copy is updated
+				if(block.key != next.key)
+					oldId = LongIntMap.NO_VALUE;
+
+				writer.setType(block.key, block.newType);
+				share.fluid.applied(block.key, block.newType.getId());
+
+				//time the change for the next guesses
+				then = System.nanoTime();
+				cost.sample(oldId, block.newType.getId(), near, then - now);
+				metrics.changeApplied(then - block.queued);
+				now = then;
+				--share.deficit;
+				++made;
+			}
+			writer.end();
+			cost.sampleChunk(overhead + System.nanoTime() - now);
+			temp.releaseChunk(changed);
+
+			if(full || System.nanoTime() - start >= time) {
+				full = true;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * makes a fluid's changes right away without a budget, loading the chunks they
+	 * are in, for when the plugin is shutting down
+	 *
+	 * @param changes the fluid's changed blocks
+	 * @param end when to stop, from System.currentTimeMillis, 0 to make every change
+	 *
+	 * @return the amount of changes made
+	 */
+	public int drain(ChangedBlocks changes, long end) {
+		ChangedChunk changed;
+		FluidBlock block;
+		World world;
+		int count = 0;
+
+		//the chunks that weren't loaded are loaded now
+		changes.unparkAll();
+		while((end <= 0 || System.currentTimeMillis() < end) && (changed = changes.pollChunk()) != null) {
+			if((world = changed.getWorld()) == null) {
+				changes.deferChunk(changed);
+				continue;
+			}
+
+			writer.begin(world.getChunkAt(changed.getX(), changed.getZ()));
+			while((end <= 0 || (count & 63) != 0 || System.currentTimeMillis() < end) && (block = changes.remove(changed)) != null) {
+				writer.setType(block.key, block.newType);
+				++count;
+			}
+			writer.end();
+			changes.releaseChunk(changed);
+		}
+		return count;
+	}
+
+	/**
+	 * gets what the changes are made with
+	 *
+	 * @return the block writer
+	 */
+	public BlockWriter getWriter() {
+		return writer;
+	}
+
+	/** keeps the shares in step with the fluids in the mapping of changed blocks */
+	private void updateShares() {
+		boolean changed = shares.size() != blockChanges.size();
+		Iterator<Share> it;
+		Share share;
+
+		//drop the shares of fluids that are gone
+		for(it = shares.iterator(); it.hasNext();) {
+			share = it.next();
+			if(blockChanges.get(share.fluid) != share.changes) {
+				it.remove();
+				changed = true;
 			}
 		}
+		if(!changed)
+			return;
+
+		//add the fluids that are new
+		for(Fluid f : blockChanges.keySet()) {
+			boolean found = false;
+			for(Share s : shares)
+				found |= s.fluid == f;
+			if(!found)
+				shares.add(new Share(f, blockChanges.get(f)));
+		}
+
+		if(next >= shares.size()) {
+			next = 0;
+			midTurn = false;
+		}
+	}
+
+	/** drops the deregistered fluids that are done, only called by the server thread */
+	private void retire() {
+		Iterator<Fluid> it;
+		Fluid f;
+		ChangedBlocks temp;
+		int dropped;
+
+		while((f = retiring.poll()) != null)
+			draining.add(f);
+
+		for(it = draining.iterator(); it.hasNext();) {
+			f = it.next();
+			temp = blockChanges.get(f);
+			if(!f.isStopped())
+				continue;
+
+			//the parked changes would wait for their chunks to load, and hide the world from the other fluids until then
+			if(temp != null && temp.getParkedChunkCount() > 0 && (dropped = temp.clearParked()) > 0)
+				System.out.println("**** WARNING! "+f.getMaterial()+" dropped "+dropped+" changes in unloaded chunks ****");
+			if(temp != null && !temp.isEmpty())
+				continue;
+
+			//the changes are all made, the journal isn't needed anymore
+			blockChanges.remove(f);
+			f.deleteJournal();
+			f.getState().clear();
+			it.remove();
+			System.out.println(f.getMaterial()+" deregistered, all of its changes are made");
+		}
+	}
+
+	/** a fluid's turn in the deficit round robin */
+	private static class Share {
+		/** the fluid */
+		final Fluid fluid;
+
+		/** the fluid's changed blocks */
+		final ChangedBlocks changes;
+
+		/** the amount of rounds' worth of changes the fluid gets each turn */
+		final int weight;
+
+		/** the amount of changes the fluid can still make */
+		int deficit;
+
+		/** whether or not the fluid had no chunks left to change at the end of its last turn */
+		boolean empty;
+
+		Share(Fluid f, ChangedBlocks cb) {
+			fluid = f;
+			changes = cb;
+			weight = f.getWeight();
+		}
 	}
 }
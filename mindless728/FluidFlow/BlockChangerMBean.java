@@ -0,0 +1,35 @@
+package mindless728.FluidFlow;
+
+/**
+ * the numbers of the block changer shown over JMX
+ *
+ * @author mindless728
+ */
+public interface BlockChangerMBean {
+	/** @return the time the block changer ran for in the last server tick in nano-seconds */
+	public long getLastRunTime();
+
+	/** @return the averaged time the block changer runs for each server tick in nano-seconds */
+	public double getAverageRunTime();
+
+	/** @return the amount of changes made in the last server tick */
+	public int getLastChangeCount();
+
+	/** @return the amount of changes waiting at the start of the last server tick */
+	public int getBacklog();
+
+	/** @return the averaged time a change far from players takes in nano-seconds */
+	public double getAverageChangeCost();
+
+	/** @return the averaged time a change near a player takes in nano-seconds */
+	public double getAverageNearChangeCost();
+
+	/** @return the averaged time starting and finishing the changes of a chunk takes in nano-seconds */
+	public double getAverageChunkCost();
+
+	/** @return the time the block changer may run for each server tick in nano-seconds */
+	public long getRunTimeBudget();
+
+	/** @return the measured ticks per second of the server */
+	public double getTps();
+}
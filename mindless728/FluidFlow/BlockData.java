@@ -5,6 +5,9 @@ import java.io.Serializable;
 /**
  * A place holder for the block data that each fluid may need
  *
+ * a fluid with state for a lot of blocks should keep it in its FluidState instead
+ * of an object for every block
+ *
  * @author mindless728
  */
 public class BlockData implements Serializable {
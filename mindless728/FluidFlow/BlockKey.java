@@ -0,0 +1,282 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.block.Block;
+import org.bukkit.Location;
+import org.bukkit.World;
+
+/**
+ * packs a block position (world, x, y, z) into a single primitive long so blocks
+ * can be hashed and compared without going through their Location
+ *
+ * layout from the high bit down: 6 bits world id, 25 bits x, 25 bits z, 8 bits y,
+ * x and z are signed and cover +-16 million blocks, y covers 0 to 255
+ *
+ * @author mindless728
+ */
+public final class BlockKey {
+	/** the amount of bits used for each part of the key */
+	public static final int WORLD_BITS = 6;
+	public static final int X_BITS = 25;
+	public static final int Z_BITS = 25;
+	public static final int Y_BITS = 8;
+
+	/** where each part of the key starts */
+	private static final int Z_SHIFT = Y_BITS;
+	private static final int X_SHIFT = Z_SHIFT + Z_BITS;
+	private static final int WORLD_SHIFT = X_SHIFT + X_BITS;
+
+	/** the masks for each part of the key */
+	private static final long Y_MASK = (1L << Y_BITS) - 1;
+	private static final long Z_MASK = (1L << Z_BITS) - 1;
+	private static final long X_MASK = (1L << X_BITS) - 1;
+
+	/** the masks for each part of the key in place */
+	private static final long Y_FIELD = Y_MASK;
+	private static final long Z_FIELD = Z_MASK << Z_SHIFT;
+	private static final long X_FIELD = X_MASK << X_SHIFT;
+
+	/** the most worlds that can be given an id */
+	public static final int MAX_WORLDS = 1 << WORLD_BITS;
+
+	/** the worlds that have been given an id, the index is the id */
+	private static volatile World[] worlds = new World[0];
+
+	/** no instances, only static helpers */
+	private BlockKey() {}
+
+	/**
+	 * packs a position into a key
+	 *
+	 * @param worldId the id of the world, from getWorldId
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @param z the z coordinate of the block
+	 *
+	 * @return the packed key
+	 */
+	public static long pack(int worldId, int x, int y, int z) {
+		return ((long)worldId << WORLD_SHIFT) |
+			   ((x & X_MASK) << X_SHIFT) |
+			   ((z & Z_MASK) << Z_SHIFT) |
+			   (y & Y_MASK);
+	}
+
+	/**
+	 * packs a location into a key
+	 *
+	 * @param loc the location to pack
+	 *
+	 * @return the packed key
+	 */
+	public static long pack(Location loc) {
+		return pack(getWorldId(loc.getWorld()), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+	}
+
+	/**
+	 * packs a block into a key
+	 *
+	 * @param block the block to pack
+	 *
+	 * @return the packed key
+	 */
+	public static long pack(Block block) {
+		return pack(getWorldId(block.getWorld()), block.getX(), block.getY(), block.getZ());
+	}
+
+	/**
+	 * @param key the packed key
+	 *
+	 * @return the world id of the key
+	 */
+	public static int getWorldId(long key) {
+		return (int)(key >>> WORLD_SHIFT);
+	}
+
+	/**
+	 * @param key the packed key
+	 *
+	 * @return the x coordinate of the key
+	 */
+	public static int getX(long key) {
+		return (int)(key << WORLD_BITS >> (64 - X_BITS));
+	}
+
+	/**
+	 * @param key the packed key
+	 *
+	 * @return the y coordinate of the key
+	 */
+	public static int getY(long key) {
+		return (int)(key & Y_MASK);
+	}
+
+	/**
+	 * @param key the packed key
+	 *
+	 * @return the z coordinate of the key
+	 */
+	public static int getZ(long key) {
+		return (int)(key << (WORLD_BITS + X_BITS) >> (64 - Z_BITS));
+	}
+
+	/**
+	 * gets the key of a block relative to another without unpacking it, each part is
+	 * added in place and kept from carrying into the next, y wraps around so check
+	 * the result with isInWorld when it can leave the world
+	 *
+	 * @param key the packed key
+	 * @param dx the amount to move along x
+	 * @param dy the amount to move along y
+	 * @param dz the amount to move along z
+	 *
+	 * @return the packed key of the relative block
+	 */
+	public static long relative(long key, int dx, int dy, int dz) {
+		return (key & ~(X_FIELD | Z_FIELD | Y_FIELD)) |
+			   ((key + ((long)dx << X_SHIFT)) & X_FIELD) |
+			   ((key + ((long)dz << Z_SHIFT)) & Z_FIELD) |
+			   ((key + dy) & Y_FIELD);
+	}
+
+	/**
+	 * checks to see if a y coordinate is inside of the world
+	 *
+	 * @param y the y coordinate
+	 *
+	 * @return whether or not a block can be at the height
+	 */
+	public static boolean isInWorld(int y) {
+		return y >= 0 && y < ChunkTypes.HEIGHT;
+	}
+
+	/**
+	 * gets the key of the chunk a block is in, chunk keys are packed the same
+	 * way with the chunk x and z in place of the block x and z and y as 0
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the packed key of the chunk
+	 */
+	public static long getChunkKey(long key) {
+		return pack(getWorldId(key), getX(key) >> 4, 0, getZ(key) >> 4);
+	}
+
+	/**
+	 * packs a chunk position into a chunk key
+	 *
+	 * @param worldId the id of the world
+	 * @param chunkX the x coordinate of the chunk
+	 * @param chunkZ the z coordinate of the chunk
+	 *
+	 * @return the packed key of the chunk
+	 */
+	public static long packChunk(int worldId, int chunkX, int chunkZ) {
+		return pack(worldId, chunkX, 0, chunkZ);
+	}
+
+	/**
+	 * spreads the bits of the key so that hash tables using the low bits do
+	 * not collide on blocks that are close together
+	 *
+	 * @param key the packed key
+	 *
+	 * @return the hash of the key
+	 */
+	public static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	/**
+	 * gets the id of a world, giving it one if it doesn't have one yet
+	 *
+	 * @param world the world to get the id of
+	 *
+	 * @return the id of the world
+	 */
+	public static int getWorldId(World world) {
+		World[] ws = worlds;
+
+		//there are only ever a few worlds, a scan is faster than a hash lookup
+		for(int i = 0; i < ws.length; ++i)
+			if(ws[i] == world)
+				return i;
+		return registerWorld(world);
+	}
+
+	/**
+	 * gets the world from its id
+	 *
+	 * @param id the id of the world
+	 *
+	 * @return the world with the id, null if there is no world with the id
+	 */
+	public static World getWorld(int id) {
+		World[] ws = worlds;
+		if(id < 0 || id >= ws.length)
+			return null;
+		return ws[id];
+	}
+
+	/**
+	 * gets the world that the key is in
+	 *
+	 * @param key the packed key
+	 *
+	 * @return the world the key is in, null if the world is not known
+	 */
+	public static World getWorld(long key) {
+		return getWorld(getWorldId(key));
+	}
+
+	/**
+	 * creates the location of a key
+	 *
+	 * @param key the packed key
+	 *
+	 * @return the location of the key
+	 */
+	public static Location toLocation(long key) {
+		return new Location(getWorld(key), getX(key), getY(key), getZ(key));
+	}
+
+	/**
+	 * gets the block a key points to
+	 *
+	 * @param key the packed key
+	 *
+	 * @return the block the key points to
+	 */
+	public static Block getBlock(long key) {
+		return getWorld(key).getBlockAt(getX(key), getY(key), getZ(key));
+	}
+
+	/**
+	 * gives the world the next id
+	 *
+	 * @param world the world to give an id
+	 *
+	 * @return the id of the world
+	 */
+	private static synchronized int registerWorld(World world) {
+		World[] ws = worlds;
+
+		//another thread may have registered it while this one waited
+		for(int i = 0; i < ws.length; ++i)
+			if(ws[i] == world)
+				return i;
+
+		if(ws.length == MAX_WORLDS)
+			throw new IllegalStateException("more than "+MAX_WORLDS+" worlds, can not give "+world.getName()+" a block key");
+
+		World[] temp = new World[ws.length + 1];
+		System.arraycopy(ws, 0, temp, 0, ws.length);
+		temp[ws.length] = world;
+		worlds = temp;
+		return ws.length;
+	}
+}
@@ -0,0 +1,43 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+
+/**
+ * changes every block through Block.setType, so each change has its physics,
+ * lighting and client update done by the server, this always works
+ *
+ * @author mindless728
+ */
+public class BlockSetter implements BlockWriter {
+	/** the chunk being changed */
+	private Chunk chunk;
+
+	public void begin(Chunk c) {
+		chunk = c;
+	}
+
+	public int getTypeId(long key) {
+		return getBlock(key).getTypeId();
+	}
+
+	public void setType(long key, Material type) {
+		getBlock(key).setType(type);
+	}
+
+	public void end() {
+		chunk = null;
+	}
+
+	/**
+	 * gets a block of the chunk being changed
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the block
+	 */
+	private Block getBlock(long key) {
+		return chunk.getBlock(BlockKey.getX(key) & 0xF, BlockKey.getY(key), BlockKey.getZ(key) & 0xF);
+	}
+}
@@ -0,0 +1,40 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+
+/**
+ * makes the block changes of a chunk for the block changer, a chunk is started
+ * with begin, its blocks are changed and then it is finished with end, only used
+ * by the server thread
+ *
+ * @author mindless728
+ */
+public interface BlockWriter {
+	/**
+	 * starts changing the blocks of a chunk
+	 *
+	 * @param chunk the loaded chunk
+	 */
+	public void begin(Chunk chunk);
+
+	/**
+	 * gets the type id of a block in the chunk, with the changes made so far
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the type id of the block
+	 */
+	public int getTypeId(long key);
+
+	/**
+	 * changes a block in the chunk
+	 *
+	 * @param key the packed key of the block
+	 * @param type the material to change it to
+	 */
+	public void setType(long key, Material type);
+
+	/** finishes changing the chunk, the changes are seen by the players once this returns */
+	public void end();
+}
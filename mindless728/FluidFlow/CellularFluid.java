@@ -0,0 +1,357 @@
+package mindless728.FluidFlow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a fluid whose rule is a function from a cell and its neighbours to the cell's
+ * next type, instead of flowing one block at a time
+ *
+ * the world is stepped a 16x16x16 region at a time, the flows of the fluid are the
+ * regions that are awake (every flow added is moved to the corner of its region so
+ * a region is only waiting once), a step copies the region's types and a 1 block
+ * border into a grid a column at a time from the copies of the chunks and runs the
+ * rule on every cell of the region reading only the grid
+ *
+ * the cells that changed are only set once every awake region has stepped, by a
+ * task on the fluid's executor that the next server tick starts, so every region of
+ * a generation sees the same world and the server thread never sets them, then the
+ * regions that changed step again in the next generation as do the regions next to
+ * a changed cell on their border, a region where nothing changed sleeps until a
+ * flow is added in it
+ *
+ * the grid is indexed by (x * WIDTH + z) * WIDTH + y with x, y and z from 0 to
+ * WIDTH - 1 like the chunk copies, the region is 1 to SIZE and cells outside the
+ * world read as OUTSIDE, a neighbour is found by adding DX, DY or DZ to the index,
+ * a region next to a chunk that isn't loaded waits for it like a flow does
+ *
+ * @author mindless728
+ */
+public abstract class CellularFluid extends Fluid {
+	/** the width of a region */
+	public static final int SIZE = 1 << FlowQueue.REGION_BITS;
+
+	/** the width of the grid, the region and its border */
+	public static final int WIDTH = SIZE + 2;
+
+	/** the index step to the next cell in x */
+	public static final int DX = WIDTH * WIDTH;
+
+	/** the index step to the next cell in z */
+	public static final int DZ = WIDTH;
+
+	/** the index step to the next cell in y */
+	public static final int DY = 1;
+
+	/** the type id of the cells outside the world, bedrock */
+	public static final int OUTSIDE = 7;
+
+	/** the grid each thread steps its regions in */
+	private static final ThreadLocal<Grid> grids = new ThreadLocal<Grid>() {
+		protected Grid initialValue() {
+			return new Grid();
+		}
+	};
+
+	/** the amount of region steps that changed cells */
+	private final AtomicLong steps = new AtomicLong();
+
+	/** the changes of the steps in this generation, set when it is done */
+	private final ConcurrentLinkedQueue<Step> stepped = new ConcurrentLinkedQueue<Step>();
+
+	/** the regions that step in the next generation */
+	private final ConcurrentLinkedQueue<FluidBlock> woken = new ConcurrentLinkedQueue<FluidBlock>();
+
+	/** the keys of the regions in woken, so a region is only woken once */
+	private final LongIntMap waking = new LongIntMap();
+
+	/** the amount of generations stepped */
+	private final AtomicLong generations = new AtomicLong();
+
+	/** sets the changes of a generation and starts the next one on the executor */
+	private final Runnable generation = new Runnable() {
+		public void run() {
+			generate();
+		}
+	};
+
+	/**
+	 * adds a region to step or takes the next one out, a flow added is moved to the
+	 * corner of its region
+	 *
+	 * @param flow the flow to add, leave null if removing
+	 *
+	 * @return the region if removing one and one exists, null otherwise
+	 */
+	public FluidBlock flowChange(FluidBlock flow) {
+		long key;
+
+		if(flow != null && flow.key != (key = regionKey(flow.key)))
+			flow = new FluidBlock(key);
+		return super.flowChange(flow);
+	}
+
+	/**
+	 * steps the region of a flow
+	 *
+	 * @param block the corner of the region
+	 */
+	public final void flow(FluidBlock block) {
+		Grid grid = grids.get();
+		long origin = regionKey(block.key);
+		byte[] cells = grid.cells;
+		int count = 0, i, x, y, z, type, next, low = 0, high = 0;
+		Step step;
+
+		//a region next to a chunk that isn't loaded steps once it is
+		if(!load(origin, grid))
+			return;
+
+		//run the rule on every cell reading only the copy, keeping the ones that change
+		for(x = 1; x <= SIZE; ++x) {
+			for(z = 1; z <= SIZE; ++z) {
+				i = (x * WIDTH + z) * WIDTH + 1;
+				for(y = 1; y <= SIZE; ++y, ++i) {
+					type = cells[i] & 0xFF;
+					if((next = update(cells, i)) == type)
+						continue;
+					grid.changed[count] = i;
+					grid.types[count] = next;
+					++count;
+				}
+			}
+		}
+
+		if(count == 0)
+			return;
+
+		//keep the cells that changed for the end of the generation and note which sides of the region they are on
+		step = new Step(count);
+		for(int c = 0; c < count; ++c) {
+			i = grid.changed[c];
+			y = i % WIDTH;
+			z = (i / WIDTH) % WIDTH;
+			x = i / DX;
+			step.keys[c] = BlockKey.relative(origin, x - 1, y - 1, z - 1);
+			step.types[c] = grid.types[c];
+			low |= ((x == 1) ? 1 : 0) | ((z == 1) ? 2 : 0) | ((y == 1) ? 4 : 0);
+			high |= ((x == SIZE) ? 1 : 0) | ((z == SIZE) ? 2 : 0) | ((y == SIZE) ? 4 : 0);
+		}
+		stepped.add(step);
+		steps.incrementAndGet();
+
+		//step this region again and wake the regions that can see a changed cell
+		wakeNext(origin);
+		wakeNext(origin, low, high);
+	}
+
+	/**
+	 * starts setting the changes of a generation once every region in it has
+	 * stepped, the fluid isn't idle again until the next generation has stepped
+	 */
+	void tick() {
+		super.tick();
+		if(!isIdle() || (stepped.isEmpty() && woken.isEmpty()))
+			return;
+		execute(generation);
+	}
+
+	/** sets the changes of a generation and starts the next one, run on the executor */
+	private void generate() {
+		ArrayList<FluidBlock> next = new ArrayList<FluidBlock>();
+		Step step;
+		FluidBlock region;
+
+		while((step = stepped.poll()) != null)
+			for(int i = 0; i < step.keys.length; ++i)
+				setType(step.keys[i], ChangedBlocks.getMaterial(step.types[i]));
+
+		//take every region out before any of them step, a step wakes regions for the generation after
+		while((region = woken.poll()) != null) {
+			waking.remove(region.key);
+			next.add(region);
+		}
+		generations.incrementAndGet();
+		for(FluidBlock fb : next)
+			addFlow(fb);
+	}
+
+	/**
+	 * checks to see if there are regions waiting to step or changes waiting to be set
+	 *
+	 * @return whether or not the fluid has more to do
+	 */
+	public boolean hasFlows() {
+		return super.hasFlows() || !stepped.isEmpty() || !woken.isEmpty();
+	}
+
+	/**
+	 * gets the next type of a cell
+	 *
+	 * @param cells the grid the region is copied into, read the types with & 0xFF
+	 * @param i the index of the cell in the grid, its neighbours are i +/- DX, DY and DZ
+	 *
+	 * @return the type id the cell is next
+	 */
+	protected abstract int update(byte[] cells, int i);
+
+	/**
+	 * gets the amount of regions that were stepped and changed
+	 *
+	 * @return the amount of steps with changes
+	 */
+	public long getStepCount() {
+		return steps.get();
+	}
+
+	/**
+	 * gets the amount of generations that were stepped
+	 *
+	 * @return the amount of generations
+	 */
+	public long getGenerationCount() {
+		return generations.get();
+	}
+
+	/**
+	 * gets the key of the corner of the region a block is in
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the packed key of the lowest block in the region
+	 */
+	public static long regionKey(long key) {
+		return BlockKey.pack(BlockKey.getWorldId(key), BlockKey.getX(key) & -SIZE, BlockKey.getY(key) & -SIZE, BlockKey.getZ(key) & -SIZE);
+	}
+
+	/**
+	 * copies the types of a region and its border into a grid, a column at a time
+	 * from the copies of the region's chunk and the 8 around it, with the changes
+	 * that aren't made yet on top, those are read first since the block changer
+	 * updates a copy before it takes the change out
+	 *
+	 * @param origin the corner of the region
+	 * @param grid the grid
+	 *
+	 * @return whether or not every chunk could be read, if not the flow is parked
+	 */
+	private boolean load(long origin, Grid grid) {
+		ChunkTypes[] around = new ChunkTypes[9];
+		byte[] cells = grid.cells;
+		int world = BlockKey.getWorldId(origin), ox = BlockKey.getX(origin), oy = BlockKey.getY(origin), oz = BlockKey.getZ(origin);
+		int low = Math.max(oy - 1, 0), high = Math.min(oy + SIZE, ChunkTypes.HEIGHT - 1), start = low - oy + 1;
+		int pending = 0, c, i, type;
+
+		//the changes that aren't made yet are newer than the copies
+		for(int x = 0; x < WIDTH; ++x) {
+			for(int z = 0; z < WIDTH; ++z) {
+				i = (x * WIDTH + z) * WIDTH + start;
+				for(int y = low; y <= high; ++y, ++i) {
+					if((type = ChangedBlocks.getPendingTypeId(BlockKey.pack(world, ox + x - 1, y, oz + z - 1))) != LongIntMap.NO_VALUE) {
+						grid.pending[pending] = i;
+						grid.pendingTypes[pending] = (byte)type;
+						++pending;
+					}
+				}
+			}
+		}
+
+		for(c = 0; c < 9; ++c)
+			if((around[c] = getChunkTypes(BlockKey.packChunk(world, (ox >> 4) + c / 3 - 1, (oz >> 4) + c % 3 - 1))) == null)
+				return false;
+
+		for(int x = 0; x < WIDTH; ++x) {
+			for(int z = 0; z < WIDTH; ++z) {
+				//the region is a chunk wide, the border is in the chunks around it
+				c = ((x == 0) ? 0 : (x == WIDTH - 1) ? 2 : 1) * 3 + ((z == 0) ? 0 : (z == WIDTH - 1) ? 2 : 1);
+				i = (x * WIDTH + z) * WIDTH;
+				Arrays.fill(cells, i, i + WIDTH, (byte)OUTSIDE);
+				around[c].copyColumn((ox + x - 1) & 0xF, (oz + z - 1) & 0xF, low, high - low + 1, cells, i + start);
+			}
+		}
+
+		for(int p = 0; p < pending; ++p)
+			cells[grid.pending[p]] = grid.pendingTypes[p];
+		return true;
+	}
+
+	/**
+	 * wakes the regions next to the sides of a region that had cells change
+	 *
+	 * @param origin the corner of the region
+	 * @param low the low sides, 1 for x, 2 for z and 4 for y
+	 * @param high the high sides, the same bits
+	 */
+	private void wakeNext(long origin, int low, int high) {
+		int dx, dy, dz;
+
+		//the regions across every side, edge and corner a changed cell touched
+		for(int side = 1; side < 27; ++side) {
+			dx = side % 3 - 1;
+			dz = (side / 3) % 3 - 1;
+			dy = side / 9 - 1;
+			if((dx == 0 && dy == 0 && dz == 0) || !touches(dx, 1, low, high) || !touches(dz, 2, low, high) || !touches(dy, 4, low, high))
+				continue;
+			if(BlockKey.isInWorld(BlockKey.getY(origin) + dy * SIZE))
+				wakeNext(BlockKey.relative(origin, dx * SIZE, dy * SIZE, dz * SIZE));
+		}
+	}
+
+	/**
+	 * wakes a region for the next generation
+	 *
+	 * @param origin the corner of the region
+	 */
+	private void wakeNext(long origin) {
+		if(waking.put(origin, 1) == LongIntMap.NO_VALUE)
+			woken.add(new FluidBlock(origin));
+	}
+
+	/**
+	 * checks to see if a changed cell was on a side of the region
+	 *
+	 * @param d the direction of the side on one axis, -1, 0 or 1
+	 * @param bit the bit of the axis
+	 * @param low the low sides with changed cells
+	 * @param high the high sides with changed cells
+	 *
+	 * @return whether or not the side had a changed cell, always true for 0
+	 */
+	private static boolean touches(int d, int bit, int low, int high) {
+		return d == 0 || (d < 0 && (low & bit) != 0) || (d > 0 && (high & bit) != 0);
+	}
+
+	/** the cells a step changed */
+	private static class Step {
+		/** the packed keys of the cells */
+		final long[] keys;
+
+		/** the types the cells change to */
+		final int[] types;
+
+		Step(int count) {
+			keys = new long[count];
+			types = new int[count];
+		}
+	}
+
+	/** the arrays a thread steps its regions in */
+	private static class Grid {
+		/** the types of the region and its border */
+		final byte[] cells = new byte[WIDTH * WIDTH * WIDTH];
+
+		/** the indexes of the cells with changes that aren't made yet */
+		final int[] pending = new int[WIDTH * WIDTH * WIDTH];
+
+		/** the types of the changes that aren't made yet */
+		final byte[] pendingTypes = new byte[WIDTH * WIDTH * WIDTH];
+
+		/** the indexes of the cells that changed */
+		final int[] changed = new int[SIZE * SIZE * SIZE];
+
+		/** the types the changed cells change to */
+		final int[] types = new int[SIZE * SIZE * SIZE];
+	}
+}
@@ -0,0 +1,185 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.util.config.Configuration;
+
+/**
+ * keeps a running average of how long a block change takes so the block changer
+ * can plan each tick's changes to fit its budget
+ *
+ * the cost of a change depends on the materials it is between (the light has to
+ * be worked out again when a block that lets light through is swapped for one that
+ * doesn't) and on whether there are players near enough to be sent the change, so
+ * a change is averaged by its old and new type ids and whether its chunk is within
+ * nearDistance chunks of a player, a change that was never timed is guessed from
+ * the average of every change near or far from players, as is a change whose old
+ * type isn't known, starting and finishing the changes of a chunk is averaged on
+ * its own
+ *
+ * only used by the server thread
+ *
+ * @author mindless728
+ */
+public class ChangeCost {
+	/** the amount of type ids a block can have */
+	private static final int TYPES = 256;
+
+	/** the guess for a change or a chunk before any have been timed, in nano-seconds */
+	private static final double INITIAL = 10000;
+
+	/** how much of a new time goes into the average of its kind of change */
+	private static final double WEIGHT = 0.1;
+
+	/** how much of a new time goes into the average of every change */
+	private static final double OVERALL_WEIGHT = 0.02;
+
+	/** the most a single time can be over its guess, so a garbage collection doesn't throw the average off */
+	private static final double LIMIT = 8;
+
+	/** the averaged cost of each change by near, old type id and new type id, a row is only made once it is needed */
+	private final double[][][] costs = new double[2][TYPES][];
+
+	/** the averaged cost of every change far from and near to players */
+	private final double[] averages = {INITIAL, INITIAL};
+
+	/** the averaged cost of starting and finishing the changes of a chunk, relighting and sending it in chunk mode */
+	private double chunkAverage = INITIAL;
+
+	/** whether or not a chunk was timed yet */
+	private boolean chunkSampled;
+
+	/** the squared distance in chunks to a player a chunk is near within */
+	private double nearDistance;
+
+	/** the amount of changes timed */
+	private long samples;
+
+	/**
+	 * Constructor that reads the cost settings from the configuration
+	 *
+	 * @param config the configuration to read from
+	 */
+	public ChangeCost(Configuration config) {
+		int d = config.getInt("BlockChanger.cost.nearDistance", 10);
+		nearDistance = (double)d * d;
+	}
+
+	/**
+	 * checks to see if a chunk is near a player
+	 *
+	 * @param priority the squared distance in chunks to the nearest player, from PlayerProximity
+	 *
+	 * @return whether or not the chunk is near
+	 */
+	public boolean isNear(double priority) {
+		return priority <= nearDistance;
+	}
+
+	/**
+	 * guesses how long a change will take
+	 *
+	 * @param oldId the type id of the block now, LongIntMap.NO_VALUE if it isn't known
+	 * @param newId the type id it is changed to, LongIntMap.NO_VALUE if it isn't known
+	 * @param near whether or not the chunk is near a player
+	 *
+	 * @return the guess in nano-seconds
+	 */
+	public double predict(int oldId, int newId, boolean near) {
+		double[] row = oldId < 0 ? null : costs[near ? 1 : 0][oldId & (TYPES - 1)];
+		double ret;
+
+		if(row == null || newId < 0 || (ret = row[newId & (TYPES - 1)]) == 0)
+			return averages[near ? 1 : 0];
+		return ret;
+	}
+
+	/**
+	 * adds the time a change took to the averages
+	 *
+	 * @param oldId the type id of the block before the change, LongIntMap.NO_VALUE if it isn't known
+	 * @param newId the type id it was changed to
+	 * @param near whether or not the chunk is near a player
+	 * @param time how long the change took in nano-seconds
+	 */
+	public void sample(int oldId, int newId, boolean near, long time) {
+		int n = near ? 1 : 0;
+		double[] row;
+		double cost = Math.max(time, 1);
+		double prev;
+
+		//a change from an unknown type only goes into the overall average
+		if(oldId < 0) {
+			averages[n] += (Math.min(cost, averages[n] * LIMIT) - averages[n]) * OVERALL_WEIGHT;
+			++samples;
+			return;
+		}
+
+		row = costs[n][oldId & (TYPES - 1)];
+		if(row == null)
+			row = costs[n][oldId & (TYPES - 1)] = new double[TYPES];
+
+		//the first time of a kind of change is taken as is, within reason
+		prev = row[newId & (TYPES - 1)];
+		if(prev == 0) {
+			row[newId & (TYPES - 1)] = Math.min(cost, averages[n] * LIMIT);
+		} else {
+			cost = Math.min(cost, prev * LIMIT);
+			row[newId & (TYPES - 1)] = prev + (cost - prev) * WEIGHT;
+		}
+		averages[n] += (Math.min(cost, averages[n] * LIMIT) - averages[n]) * OVERALL_WEIGHT;
+		++samples;
+	}
+
+	/**
+	 * guesses how long starting and finishing the changes of a chunk will take
+	 *
+	 * @return the guess in nano-seconds
+	 */
+	public double predictChunk() {
+		return chunkAverage;
+	}
+
+	/**
+	 * adds the time starting and finishing the changes of a chunk took to its average
+	 *
+	 * @param time how long it took in nano-seconds
+	 */
+	public void sampleChunk(long time) {
+		double cost = Math.max(time, 1);
+
+		if(!chunkSampled) {
+			chunkSampled = true;
+			chunkAverage = cost;
+			return;
+		}
+		chunkAverage += (Math.min(cost, chunkAverage * LIMIT) - chunkAverage) * WEIGHT;
+	}
+
+	/**
+	 * gets the averaged cost of starting and finishing the changes of a chunk
+	 *
+	 * @return the average in nano-seconds
+	 */
+	public double getChunkAverage() {
+		return chunkAverage;
+	}
+
+	/**
+	 * gets the averaged cost of a change
+	 *
+	 * @param near whether the changes near players or far from them
+	 *
+	 * @return the average in nano-seconds
+	 */
+	public double getAverage(boolean near) {
+		return averages[near ? 1 : 0];
+	}
+
+	/**
+	 * gets the amount of changes that were timed
+	 *
+	 * @return the amount of samples
+	 */
+	public long getSampleCount() {
+		return samples;
+	}
+}
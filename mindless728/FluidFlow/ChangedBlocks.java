@@ -2,26 +2,102 @@ package mindless728.FluidFlow;
 
 import org.bukkit.Material;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Keeps track of the list of changed blocks to keep order and a mapping from
  * the blocks to the new changed types for fast access
  *
+ * the blocks are kept in order per chunk, and the chunks with changes are kept in
+ * order of when they got their first change, so a whole chunk can be changed at once
+ *
+ * none of the methods lock, the fluid threads can add changes while the server
+ * thread is removing them, a block that is changed many times before it is
+ * removed only takes up one spot in the order and is removed with its latest type
+ *
+ * the new types of every fluid's changed blocks are kept in one index shared by
+ * all of the changed blocks, each entry records which fluid's changed blocks made
+ * the last change, so any fluid can find what a block will be with one lookup
+ *
+ * the server thread can put the chunks in order of a priority with prioritize, the
+ * chunks are then taken in that order, a chunk given back with blocks left is taken
+ * again first, and chunks that got their first change since go after them until the
+ * next prioritize
+ *
+ * the chunks that aren't loaded are parked with their changes until the chunk
+ * loads, they are not retried every tick and are never loaded to make the changes
+ *
  * @author mindless728
  */
 public class ChangedBlocks {
-	/** the order of the blocks to be changed */
-	private LinkedList<FluidBlock> list;
+	/** the chunks with changed blocks, by the packed chunk key */
+	private LongObjectMap<ChangedChunk> chunks;
+
+	/** the order of the chunks that have blocks to be changed */
+	private ConcurrentLinkedQueue<ChangedChunk> ready;
+
+	/** the chunks that could not be changed yet, they go back in order on retryDeferred */
+	private ConcurrentLinkedQueue<ChangedChunk> deferred;
+
+	/** the chunks that aren't loaded, by the packed chunk key, they go back in order when they load, only used by the server thread */
+	private LongObjectMap<ChangedChunk> parked;
+
+	/** the chunk remove() is taking blocks from, only used by the thread calling remove() */
+	private ChangedChunk current;
+
+	/** the chunks in order of priority, taken before the ready ones, null until prioritize is called, only used by the server thread */
+	private LinkedList<ChangedChunk> ordered;
+
+	/** orders the chunks by their priority */
+	private static final Comparator<ChangedChunk> BY_PRIORITY = new Comparator<ChangedChunk>() {
+		public int compare(ChangedChunk a, ChangedChunk b) {
+			return Double.compare(a.priority, b.priority);
+		}
+	};
 
-	/** the mappping from the blocks to the new material type */
-	private HashMap<FluidBlock, Material> map;
+	/** the mappping from the packed block keys to the owner and id of the new material type, shared by all */
+	private static final LongIntMap pending = new LongIntMap();
+
+	/** the bits the owner is shifted by in the pending index */
+	private static final int OWNER_SHIFT = 16;
+
+	/** the mask of the material id in the pending index */
+	private static final int TYPE_MASK = (1 << OWNER_SHIFT) - 1;
+
+	/** the next owner id to give out */
+	private static final AtomicInteger nextOwner = new AtomicInteger();
+
+	/** the owner id of these changed blocks in the pending index */
+	private final int owner;
+
+	/** the amount of blocks in the order, kept since the queues' size is not constant time */
+	private AtomicInteger count;
+
+	/** the materials indexed by their id, so ids can be turned back into materials without a lookup */
+	private static final Material[] materials;
+
+	static {
+		int max = 0;
+		for(Material m : Material.values())
+			max = Math.max(max, m.getId());
+		materials = new Material[max + 1];
+		for(Material m : Material.values())
+			materials[m.getId()] = m;
+	}
 
 	/** default constructor */
 	public ChangedBlocks() {
-		list = new LinkedList<FluidBlock>();
-		map = new HashMap<FluidBlock, Material>();
+		chunks = new LongObjectMap<ChangedChunk>();
+		ready = new ConcurrentLinkedQueue<ChangedChunk>();
+		deferred = new ConcurrentLinkedQueue<ChangedChunk>();
+		parked = new LongObjectMap<ChangedChunk>();
+		count = new AtomicInteger();
+		owner = nextOwner.getAndIncrement() & 0x7FFF;
 	}
 
 	/**
@@ -32,9 +108,80 @@ public class ChangedBlocks {
 	public void add(FluidBlock fb) {
 		if(fb == null)
 			return;
-		if(!contains(fb))
-			list.add(fb);
-		map.put(fb, fb.newType);
+		add(fb, fb.newType);
+	}
+
+	/**
+	 * adds the block to the list with the given type or changes the mapping if it is
+	 * already there, the type is passed seperately since the block's newType may be
+	 * changed by the server thread when it removes the block
+	 *
+	 * @param fb the block to add/change
+	 * @param type the material the block is changed to
+	 */
+	public void add(FluidBlock fb, Material type) {
+		if(fb == null || type == null)
+			return;
+		add(fb.key, fb, type);
+	}
+
+	/**
+	 * adds a block to the list by its packed key with the given type or changes the
+	 * mapping if it is already there, the fluid block is only made if the block
+	 * takes a spot in the order
+	 *
+	 * @param key the packed key of the block
+	 * @param type the material the block is changed to
+	 */
+	public void add(long key, Material type) {
+		if(type != null)
+			add(key, null, type);
+	}
+
+	/**
+	 * adds a block to the list or changes the mapping if it is already there
+	 *
+	 * @param key the packed key of the block
+	 * @param fb the block to add, null to make one if it takes a spot in the order
+	 * @param type the material the block is changed to
+	 */
+	private void add(long key, FluidBlock fb, Material type) {
+		//only the first change to a block takes a spot in the order, later changes just
+		//replace the type it will be changed to, if another fluid made the last change
+		//the block takes a spot in this order too and whichever order gets to it first
+		//changes it to the latest type
+		int prev = pending.put(key, (owner << OWNER_SHIFT) | type.getId());
+		if(prev == LongIntMap.NO_VALUE || (prev >>> OWNER_SHIFT) != owner) {
+			long chunkKey = BlockKey.getChunkKey(key);
+			ChangedChunk chunk;
+
+			if(fb == null) {
+				fb = new FluidBlock(key);
+				fb.newType = type;
+			}
+			fb.queued = System.nanoTime();
+			while(true) {
+				chunk = chunks.get(chunkKey);
+
+				//get the chunk the block is in, creating it if this is its first change
+				if(chunk == null) {
+					ChangedChunk temp = new ChangedChunk(chunkKey);
+					if((chunk = chunks.putIfAbsent(chunkKey, temp)) == null)
+						chunk = temp;
+				}
+
+				if(chunk.add(fb))
+					break;
+
+				//the chunk was just given back empty, take it out if it is still there and get a new one
+				chunks.remove(chunkKey, chunk);
+			}
+			count.incrementAndGet();
+
+			//put the chunk in the order if it isn't already there
+			if(chunk.queued.compareAndSet(false, true))
+				ready.add(chunk);
+		}
 	}
 
 	/**
@@ -43,12 +190,183 @@ public class ChangedBlocks {
 	 * @return the fist block in the list if there is one or null if there is no block
 	 */
 	public FluidBlock remove() {
-		if(list.isEmpty())
-			return null;
+		FluidBlock ret;
 
-		FluidBlock ret = list.remove();
-		map.remove(ret);
-		return ret;
+		while(true) {
+			//move to the next chunk, taking back the deferred ones when the rest are done
+			if(current == null && (current = pollChunk()) == null) {
+				if(deferred.isEmpty())
+					return null;
+				retryDeferred();
+				continue;
+			}
+
+			if((ret = remove(current)) != null)
+				return ret;
+
+			releaseChunk(current);
+			current = null;
+		}
+	}
+
+	/**
+	 * takes the next chunk that has blocks to change, the chunk must be given back
+	 * with releaseChunk or deferChunk when done with it
+	 *
+	 * @return the next chunk with changes, null if there are none
+	 */
+	public ChangedChunk pollChunk() {
+		ChangedChunk ret;
+		if(ordered != null && (ret = ordered.poll()) != null)
+			return ret;
+		return ready.poll();
+	}
+
+	/**
+	 * puts the chunks waiting for their changes in order of a priority, only
+	 * called by the server thread
+	 *
+	 * @param priority gives the priority of each chunk
+	 */
+	public void prioritize(ChunkPriority priority) {
+		ChangedChunk chunk;
+
+		if(ordered == null)
+			ordered = new LinkedList<ChangedChunk>();
+		while((chunk = ready.poll()) != null)
+			ordered.add(chunk);
+
+		//the sort is stable, chunks with the same priority stay in the order they came in
+		for(ChangedChunk c : ordered)
+			c.priority = priority.getPriority(c.key);
+		Collections.sort(ordered, BY_PRIORITY);
+	}
+
+	/**
+	 * removes the first block in a chunk and the mapping
+	 *
+	 * @param chunk the chunk taken from pollChunk
+	 *
+	 * @return the first block in the chunk if there is one or null if there is no block
+	 */
+	public FluidBlock remove(ChangedChunk chunk) {
+		return remove(chunk, null);
+	}
+
+	/**
+	 * removes the first block in a chunk and the mapping, updating the copy of
+	 * the chunk the fluids read before the mapping is gone so they never see the
+	 * old type
+	 *
+	 * @param chunk the chunk taken from pollChunk
+	 * @param cache the copies of the chunks the fluids read from, null if there are none
+	 *
+	 * @return the first block in the chunk if there is one or null if there is no block
+	 */
+	public FluidBlock remove(ChangedChunk chunk, ChunkCache cache) {
+		FluidBlock ret;
+		int type;
+
+		while((ret = chunk.blocks.poll()) != null) {
+			count.decrementAndGet();
+
+			//take the latest type the block was changed to, again if a fluid changed it in between
+			while((type = pending.get(ret.key)) != LongIntMap.NO_VALUE) {
+				if(cache != null)
+					cache.setTypeId(ret.key, type & TYPE_MASK);
+				if(pending.remove(ret.key, type)) {
+					ret.newType = getMaterial(type & TYPE_MASK);
+					return ret;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * gets the first block in a chunk without removing it, the block may already
+	 * have been changed in which case remove skips it
+	 *
+	 * @param chunk the chunk taken from pollChunk
+	 *
+	 * @return the first block in the chunk if there is one or null if there is no block
+	 */
+	public FluidBlock peek(ChangedChunk chunk) {
+		return chunk.blocks.peek();
+	}
+
+	/**
+	 * gives back a chunk taken from pollChunk, if it still has blocks it goes to
+	 * the end of the order, or the front when the chunks are in priority order
+	 *
+	 * @param chunk the chunk taken from pollChunk
+	 */
+	public void releaseChunk(ChangedChunk chunk) {
+		//the chunk stays queued while it has blocks, a block added while it was taken is seen here
+		if(!chunk.kill()) {
+			//keep the chunk's place when in priority order
+			if(ordered != null)
+				ordered.addFirst(chunk);
+			else
+				ready.add(chunk);
+			return;
+		}
+
+		//the chunk is done, the next change in it makes a new one
+		chunks.remove(chunk.key, chunk);
+	}
+
+	/**
+	 * gives back a chunk taken from pollChunk that can not be changed right now,
+	 * it is skipped until retryDeferred is called
+	 *
+	 * @param chunk the chunk taken from pollChunk
+	 */
+	public void deferChunk(ChangedChunk chunk) {
+		deferred.add(chunk);
+	}
+
+	/**
+	 * gives back a chunk taken from pollChunk that isn't loaded, it is skipped
+	 * until unparkChunk is called for it
+	 *
+	 * @param chunk the chunk taken from pollChunk
+	 */
+	public void parkChunk(ChangedChunk chunk) {
+		parked.put(chunk.key, chunk);
+	}
+
+	/**
+	 * puts a parked chunk back at the end of the order, called when it loads
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 */
+	public void unparkChunk(long chunkKey) {
+		ChangedChunk chunk = parked.remove(chunkKey);
+		if(chunk != null)
+			ready.add(chunk);
+	}
+
+	/** puts every parked chunk back at the end of the order, for when they are loaded to be changed anyway */
+	public void unparkAll() {
+		for(ChangedChunk c : parked.values(new ArrayList<ChangedChunk>()))
+			unparkChunk(c.key);
+	}
+
+	/**
+	 * gets the amount of chunks waiting to load
+	 *
+	 * @return the amount of parked chunks
+	 */
+	public int getParkedChunkCount() {
+		return parked.size();
+	}
+
+	/** puts the deferred chunks back at the end of the order */
+	public void retryDeferred() {
+		ChangedChunk chunk;
+		while((chunk = deferred.poll()) != null)
+			ready.add(chunk);
 	}
 
 	/**
@@ -61,7 +379,7 @@ public class ChangedBlocks {
 	public boolean contains(FluidBlock fb) {
 		if(fb == null)
 			return false;
-		return map.containsKey(fb);
+		return getTypeId(fb.key) != LongIntMap.NO_VALUE;
 	}
 
 	/**
@@ -74,7 +392,170 @@ public class ChangedBlocks {
 	public Material getType(FluidBlock fb) {
 		if(fb == null)
 			return null;
-		return map.get(fb);
+		return getMaterial(getTypeId(fb.key));
+	}
+
+	/**
+	 * gets the id of the mapped material without creating a block, only if these
+	 * changed blocks made the last change to it
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the id of the mapped material if it exists or LongIntMap.NO_VALUE if not
+	 */
+	public int getTypeId(long key) {
+		int ret = pending.get(key);
+		if(ret == LongIntMap.NO_VALUE || (ret >>> OWNER_SHIFT) != owner)
+			return LongIntMap.NO_VALUE;
+		return ret & TYPE_MASK;
+	}
+
+	/**
+	 * gets the id of the material a block will be changed to by any fluid
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the id of the pending material if there is one or LongIntMap.NO_VALUE if not
+	 */
+	public static int getPendingTypeId(long key) {
+		int ret = pending.get(key);
+		if(ret == LongIntMap.NO_VALUE)
+			return ret;
+		return ret & TYPE_MASK;
+	}
+
+	/**
+	 * gets the owner id of the changed blocks that made the last change to a block
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the owner id of the last change if there is one or LongIntMap.NO_VALUE if not
+	 */
+	public static int getPendingOwner(long key) {
+		int ret = pending.get(key);
+		if(ret == LongIntMap.NO_VALUE)
+			return ret;
+		return ret >>> OWNER_SHIFT;
+	}
+
+	/**
+	 * gets the owner id these changed blocks use in the pending index
+	 *
+	 * @return the owner id
+	 */
+	public int getOwner() {
+		return owner;
+	}
+
+	/** throws away all of the changes without making them, taking them out of the pending index */
+	public void clear() {
+		ChangedChunk chunk;
+
+		//the parked chunks' changes are thrown away too
+		unparkAll();
+		retryDeferred();
+		if(current != null) {
+			releaseChunk(current);
+			current = null;
+		}
+
+		while((chunk = pollChunk()) != null) {
+			drop(chunk);
+			releaseChunk(chunk);
+		}
+	}
+
+	/**
+	 * throws away the changes of the parked chunks without making them, for a
+	 * fluid that has stopped, so the chunks don't have to load for it to be done
+	 *
+	 * @return the amount of changes thrown away
+	 */
+	public int clearParked() {
+		ChangedChunk chunk;
+		int ret = 0;
+
+		for(ChangedChunk c : parked.values(new ArrayList<ChangedChunk>())) {
+			if((chunk = parked.remove(c.key)) == null)
+				continue;
+			ret += drop(chunk);
+			releaseChunk(chunk);
+		}
+		return ret;
+	}
+
+	/**
+	 * throws away the blocks of a taken chunk, taking them out of the pending index
+	 *
+	 * @param chunk the chunk
+	 *
+	 * @return the amount of blocks thrown away
+	 */
+	private int drop(ChangedChunk chunk) {
+		FluidBlock fb;
+		int type, ret = 0;
+
+		while((fb = chunk.blocks.poll()) != null) {
+			count.decrementAndGet();
+			++ret;
+
+			//only take out the entry if this made the last change, another fluid may have changed it since
+			type = pending.get(fb.key);
+			if(type != LongIntMap.NO_VALUE && (type >>> OWNER_SHIFT) == owner)
+				pending.remove(fb.key, type);
+		}
+		return ret;
+	}
+
+	/**
+	 * takes out a change replayed from a journal that the journal says was made,
+	 * only if it is still the latest change to the block
+	 *
+	 * @param key the packed key of the block
+	 * @param typeId the id of the material the block was changed to
+	 */
+	void discard(long key, int typeId) {
+		int type = pending.get(key);
+		if(type != LongIntMap.NO_VALUE && (type >>> OWNER_SHIFT) == owner && (type & TYPE_MASK) == typeId)
+			pending.remove(key, type);
+	}
+
+	/**
+	 * appends the changes that are still pending to a journal, changes added or
+	 * made while this runs may or may not be appended
+	 *
+	 * @param journal the journal to append to
+	 */
+	void journal(Journal journal) {
+		ArrayList<ChangedChunk> temp = chunks.values(new ArrayList<ChangedChunk>());
+		int type;
+
+		for(ChangedChunk chunk : temp)
+			for(FluidBlock fb : chunk.blocks)
+				if((type = getTypeId(fb.key)) != LongIntMap.NO_VALUE)
+					journal.change(fb.key, type);
+	}
+
+	/**
+	 * turns a material id back into the material
+	 *
+	 * @param id the id of the material
+	 *
+	 * @return the material with the id, null if there is none
+	 */
+	public static Material getMaterial(int id) {
+		if(id < 0 || id >= materials.length)
+			return null;
+		return materials[id];
+	}
+
+	/**
+	 * gets the amount of material ids, one more than the highest id
+	 *
+	 * @return the size an array indexed by material id needs to be
+	 */
+	public static int getMaterialIdLimit() {
+		return materials.length;
 	}
 
 	/**
@@ -83,7 +564,7 @@ public class ChangedBlocks {
 	 * @return whether or not the list of changed blocks is empty
 	 */
 	public boolean isEmpty() {
-		return list.isEmpty();
+		return size() == 0;
 	}
 
 	/**
@@ -92,6 +573,6 @@ public class ChangedBlocks {
 	 * @return the amount of changed blocks
 	 */
 	public int size() {
-		return list.size();
+		return Math.max(count.get(), 0);
 	}
 }
@@ -0,0 +1,117 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.World;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the changed blocks of a fluid that are in a single chunk, so the block changer
+ * can change a whole chunk's worth of blocks at once
+ *
+ * once a chunk is given back empty it is dead, nothing can be added to it and it
+ * is taken out of the changed blocks' chunks, so a key only ever has one live chunk,
+ * this is done without a lock so the server thread giving a chunk back never waits
+ * on a fluid adding to it
+ *
+ * @author mindless728
+ */
+public class ChangedChunk {
+	/** the state of a chunk being checked for blocks by the thread that took it */
+	private static final int KILLING = -1;
+
+	/** the state of a chunk that was given back empty, nothing can be added after */
+	private static final int DEAD = -2;
+
+	/** the packed key of the chunk, see BlockKey.getChunkKey */
+	public final long key;
+
+	/** the order of the blocks to be changed in this chunk */
+	final ConcurrentLinkedQueue<FluidBlock> blocks;
+
+	/** whether or not the chunk is waiting in (or taken from) the ready queue */
+	final AtomicBoolean queued;
+
+	/** the priority the chunk was last given, only used by the server thread */
+	double priority;
+
+	/** the amount of adds in progress, or KILLING or DEAD */
+	private final AtomicInteger state = new AtomicInteger();
+
+	/**
+	 * Constructor taking the packed key of the chunk
+	 *
+	 * @param k the packed key of the chunk
+	 */
+	public ChangedChunk(long k) {
+		key = k;
+		blocks = new ConcurrentLinkedQueue<FluidBlock>();
+		queued = new AtomicBoolean();
+	}
+
+	/**
+	 * adds a block to the end of the chunk
+	 *
+	 * @param fb the block to add
+	 *
+	 * @return whether or not it was added, false if the chunk is dead
+	 */
+	boolean add(FluidBlock fb) {
+		int s;
+
+		//only waits out the few instructions kill takes to look at the blocks
+		while(true) {
+			s = state.get();
+			if(s == DEAD)
+				return false;
+			if(s == KILLING)
+				Thread.yield();
+			else if(state.compareAndSet(s, s + 1))
+				break;
+		}
+		blocks.add(fb);
+		state.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * kills the chunk if it has no blocks left, only called by the thread that took it
+	 *
+	 * @return whether or not the chunk is dead
+	 */
+	boolean kill() {
+		//an add in progress means the chunk is getting a block
+		if(!state.compareAndSet(0, KILLING))
+			return false;
+		if(!blocks.isEmpty()) {
+			state.set(0);
+			return false;
+		}
+		state.set(DEAD);
+		return true;
+	}
+
+	/**
+	 * gets the world the chunk is in
+	 *
+	 * @return the world of the chunk, null if it is not known
+	 */
+	public World getWorld() {
+		return BlockKey.getWorld(key);
+	}
+
+	/**
+	 * @return the x coordinate of the chunk
+	 */
+	public int getX() {
+		return BlockKey.getX(key);
+	}
+
+	/**
+	 * @return the z coordinate of the chunk
+	 */
+	public int getZ() {
+		return BlockKey.getZ(key);
+	}
+}
@@ -0,0 +1,256 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * copies of the block types of chunks so the fluid threads never read the world
+ * themselves, the copies are taken on the server thread, kept up to date with the
+ * changes the block changer makes, thrown out on block break/place and thrown
+ * out after a while to pick up changes made by anything else
+ *
+ * a fluid thread reading a chunk that isn't copied yet asks for it and waits for
+ * the next server tick to copy it, if it isn't copied in time the block reads as
+ * UNLOADED so the flow is parked, it is put back right away since the chunk isn't
+ * marked unloaded, the fluid threads never read the world
+ *
+ * a chunk that isn't loaded is never loaded for a copy, it is marked unloaded and
+ * reads as UNLOADED until the chunk load event for it comes in
+ *
+ * @author mindless728
+ */
+public class ChunkCache {
+	/** the type id read from a chunk that isn't loaded */
+	public static final int UNLOADED = -2;
+
+	/** the copied chunks, by the packed chunk key */
+	private LongObjectMap<ChunkTypes> chunks;
+
+	/** the chunks the fluid threads are waiting on */
+	private ConcurrentLinkedQueue<ChunkTypes> requests;
+
+	/** the server thread, chunks asked for from it are copied right away */
+	private volatile Thread mainThread;
+
+	/** the current tick, counted by tick() */
+	private volatile int tick;
+
+	/** the longest a fluid thread waits for a chunk to be copied in milli-seconds */
+	private long waitTime = 250;
+
+	/** the amount of ticks a copy is kept for before it is taken again */
+	private int maxAge = 100;
+
+	/** whether or not the cache has been closed */
+	private volatile boolean closed;
+
+	/** the chunks known to be unloaded, by the packed chunk key */
+	private LongIntMap unloaded;
+
+	/**
+	 * Constructor taking the settings, called on the server thread
+	 *
+	 * @param wait the longest a fluid thread waits for a chunk in milli-seconds
+	 * @param age the amount of ticks a copy is kept for
+	 */
+	public ChunkCache(long wait, int age) {
+		chunks = new LongObjectMap<ChunkTypes>();
+		requests = new ConcurrentLinkedQueue<ChunkTypes>();
+		unloaded = new LongIntMap();
+		mainThread = Thread.currentThread();
+		waitTime = wait;
+		maxAge = age;
+	}
+
+	/**
+	 * gets the type id of a block from the copy of its chunk
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the type id of the block, UNLOADED if the chunk isn't loaded
+	 */
+	public int getTypeId(long key) {
+		ChunkTypes types = getChunk(BlockKey.getChunkKey(key));
+
+		if(types == null)
+			return UNLOADED;
+		return types.getTypeId(BlockKey.getX(key) & 0xF, BlockKey.getY(key), BlockKey.getZ(key) & 0xF);
+	}
+
+	/**
+	 * gets the copy of a chunk, for reading many of its blocks at once
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 *
+	 * @return the copy of the chunk, null if the chunk isn't loaded
+	 */
+	public ChunkTypes getChunk(long chunkKey) {
+		ChunkTypes types = chunks.get(chunkKey);
+
+		if(types == null) {
+			if(unloaded.containsKey(chunkKey))
+				return null;
+			types = request(chunkKey);
+		}
+
+		//the copy could not be taken in time, the flow waits and runs again
+		if(!types.await(waitTime))
+			return null;
+		return types;
+	}
+
+	/**
+	 * gets the type id of a block only if its chunk is already copied, it never
+	 * waits or asks for a copy
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the type id of the block, LongIntMap.NO_VALUE if the chunk isn't copied
+	 */
+	public int peekTypeId(long key) {
+		ChunkTypes types = chunks.get(BlockKey.getChunkKey(key));
+
+		if(types == null || !types.isCaptured())
+			return LongIntMap.NO_VALUE;
+		return types.getTypeId(BlockKey.getX(key) & 0xF, BlockKey.getY(key), BlockKey.getZ(key) & 0xF);
+	}
+
+	/**
+	 * updates the copy of a block after the server thread changed it
+	 *
+	 * @param key the packed key of the block
+	 * @param id the new type id of the block
+	 */
+	public void setTypeId(long key, int id) {
+		ChunkTypes types = chunks.get(BlockKey.getChunkKey(key));
+		if(types != null)
+			types.setTypeId(BlockKey.getX(key) & 0xF, BlockKey.getY(key), BlockKey.getZ(key) & 0xF, id);
+	}
+
+	/**
+	 * throws out the copy of a chunk, it is taken again the next time it is read
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 */
+	public void invalidate(long chunkKey) {
+		chunks.remove(chunkKey);
+	}
+
+	/**
+	 * marks a chunk unloaded and throws out its copy, called on the server thread
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 */
+	public void unload(long chunkKey) {
+		unloaded.put(chunkKey, 1);
+		chunks.remove(chunkKey);
+	}
+
+	/**
+	 * marks a chunk loaded again, it is copied the next time it is read
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 */
+	public void load(long chunkKey) {
+		unloaded.remove(chunkKey);
+		chunks.remove(chunkKey);
+	}
+
+	/**
+	 * checks to see if a chunk is known to be unloaded
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 *
+	 * @return whether or not the chunk was unloaded and hasn't been loaded since
+	 */
+	public boolean isUnloaded(long chunkKey) {
+		return unloaded.containsKey(chunkKey);
+	}
+
+	/** copies the chunks asked for and throws out old copies, run every server tick */
+	public void tick() {
+		ChunkTypes types;
+		int now = ++tick;
+
+		mainThread = Thread.currentThread();
+
+		while((types = requests.poll()) != null)
+			capture(types);
+
+		//throw out old copies once a second
+		if(now % 20 == 0) {
+			for(ChunkTypes t : chunks.values(new ArrayList<ChunkTypes>()))
+				if(t.isCaptured() && now - t.getCaptured() > maxAge)
+					chunks.remove(t.key, t);
+		}
+	}
+
+	/** throws out every copy and lets any waiting fluid threads go, every chunk reads as unloaded after */
+	public void close() {
+		ChunkTypes types;
+
+		closed = true;
+		for(ChunkTypes t : chunks.values(new ArrayList<ChunkTypes>()))
+			t.release();
+		chunks.clear();
+		while((types = requests.poll()) != null)
+			types.release();
+	}
+
+	/**
+	 * gets the copy of a chunk that isn't copied yet, asking the server thread for it
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 *
+	 * @return the copy of the chunk, it may still need to be waited on
+	 */
+	private ChunkTypes request(long chunkKey) {
+		ChunkTypes ret = new ChunkTypes(chunkKey);
+		ChunkTypes temp;
+
+		if(closed) {
+			ret.release();
+			return ret;
+		}
+
+		//someone else already asked for it
+		if((temp = chunks.putIfAbsent(chunkKey, ret)) != null)
+			return temp;
+
+		if(Thread.currentThread() == mainThread)
+			capture(ret);
+		else
+			requests.add(ret);
+		return ret;
+	}
+
+	/**
+	 * copies a chunk on the server thread
+	 *
+	 * @param types the copy to fill in
+	 */
+	private void capture(ChunkTypes types) {
+		World world = BlockKey.getWorld(types.key);
+		Chunk chunk;
+
+		if(world == null) {
+			chunks.remove(types.key, types);
+			types.release();
+			return;
+		}
+
+		//don't load the chunk just to copy it, the fluids wait for it to load
+		if(!world.isChunkLoaded(BlockKey.getX(types.key), BlockKey.getZ(types.key))) {
+			unloaded.put(types.key, 1);
+			chunks.remove(types.key, types);
+			types.release();
+			return;
+		}
+
+		chunk = world.getChunkAt(BlockKey.getX(types.key), BlockKey.getZ(types.key));
+		types.capture(chunk.getChunkSnapshot(), tick);
+	}
+}
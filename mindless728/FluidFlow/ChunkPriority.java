@@ -0,0 +1,18 @@
+package mindless728.FluidFlow;
+
+/**
+ * decides which chunks get their changes made first when the block changer is
+ * ordering them by priority
+ *
+ * @author mindless728
+ */
+public interface ChunkPriority {
+	/**
+	 * gets the priority of a chunk, called on the server thread
+	 *
+	 * @param chunkKey the packed key of the chunk, see BlockKey.getChunkKey
+	 *
+	 * @return the priority, lower is changed sooner, chunks with the same priority keep their order
+	 */
+	public double getPriority(long chunkKey);
+}
@@ -0,0 +1,141 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.ChunkSnapshot;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a copy of the block types of a chunk in a flat array, filled in on the server
+ * thread and read from the fluid threads
+ *
+ * @author mindless728
+ */
+public class ChunkTypes {
+	/** the height of a chunk */
+	public static final int HEIGHT = 128;
+
+	/** the packed key of the chunk, see BlockKey.getChunkKey */
+	public final long key;
+
+	/** the block type ids, indexed by (x << 11) | (z << 7) | y */
+	private volatile byte[] types;
+
+	/** the tick the types were copied on */
+	private volatile int captured;
+
+	/** lets the threads waiting for the types go once they are copied */
+	private final CountDownLatch ready;
+
+	/**
+	 * Constructor taking the packed key of the chunk
+	 *
+	 * @param k the packed key of the chunk
+	 */
+	public ChunkTypes(long k) {
+		key = k;
+		ready = new CountDownLatch(1);
+	}
+
+	/**
+	 * copies the types out of a snapshot of the chunk, only called once
+	 *
+	 * @param snapshot the snapshot of the chunk, null if it could not be taken
+	 * @param tick the current tick
+	 */
+	void capture(ChunkSnapshot snapshot, int tick) {
+		if(snapshot != null) {
+			byte[] temp = new byte[16 * 16 * HEIGHT];
+			for(int x = 0; x < 16; ++x)
+				for(int z = 0; z < 16; ++z)
+					for(int y = 0; y < HEIGHT; ++y)
+						temp[(x << 11) | (z << 7) | y] = (byte)snapshot.getBlockTypeId(x, y, z);
+			types = temp;
+		}
+		captured = tick;
+		ready.countDown();
+	}
+
+	/** lets any waiting threads go without copying the types */
+	void release() {
+		ready.countDown();
+	}
+
+	/**
+	 * waits for the types to be copied
+	 *
+	 * @param time the longest to wait in milli-seconds
+	 *
+	 * @return whether or not the types can be read
+	 */
+	public boolean await(long time) {
+		try {
+			if(ready.getCount() != 0 && !ready.await(time, TimeUnit.MILLISECONDS))
+				return false;
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return types != null;
+	}
+
+	/**
+	 * checks to see if the types have been copied
+	 *
+	 * @return whether or not the types can be read without waiting
+	 */
+	public boolean isCaptured() {
+		return types != null;
+	}
+
+	/**
+	 * @return the tick the types were copied on
+	 */
+	public int getCaptured() {
+		return captured;
+	}
+
+	/**
+	 * gets the type id of a block in the chunk
+	 *
+	 * @param x the x coordinate in the chunk, 0-15
+	 * @param y the y coordinate
+	 * @param z the z coordinate in the chunk, 0-15
+	 *
+	 * @return the type id of the block, 0 (air) above or below the chunk
+	 */
+	public int getTypeId(int x, int y, int z) {
+		if(y < 0 || y >= HEIGHT)
+			return 0;
+		return types[(x << 11) | (z << 7) | y] & 0xFF;
+	}
+
+	/**
+	 * copies part of a column of the chunk, the heights have to be in the chunk
+	 *
+	 * @param x the x coordinate in the chunk, 0-15
+	 * @param z the z coordinate in the chunk, 0-15
+	 * @param y the lowest y coordinate to copy
+	 * @param length the amount of blocks to copy going up
+	 * @param dest the array to copy the type ids to
+	 * @param offset where in dest the lowest block goes
+	 */
+	public void copyColumn(int x, int z, int y, int length, byte[] dest, int offset) {
+		System.arraycopy(types, (x << 11) | (z << 7) | y, dest, offset, length);
+	}
+
+	/**
+	 * sets the type id of a block in the copy, called when the server thread changes the block
+	 *
+	 * @param x the x coordinate in the chunk, 0-15
+	 * @param y the y coordinate
+	 * @param z the z coordinate in the chunk, 0-15
+	 * @param id the new type id of the block
+	 */
+	public void setTypeId(int x, int y, int z, int id) {
+		byte[] temp = types;
+		if(temp == null || y < 0 || y >= HEIGHT)
+			return;
+		temp[(x << 11) | (z << 7) | y] = (byte)id;
+	}
+}
@@ -0,0 +1,328 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+/**
+ * changes the blocks of a chunk by writing straight into the server's arrays for
+ * the chunk, found through CraftChunk.getHandle, instead of calling Block.setType
+ * for every block, so a change has no physics, no lighting and no client update
+ * of its own
+ *
+ * the last change of a chunk is made through Block.setType so the server marks
+ * the chunk to be saved, then the light of the chunk is worked out once and the
+ * chunk is sent to the players again once, the light given off by lava is only
+ * spread by the server for that last change
+ *
+ * the block array is found the first time a chunk is changed by its size, the
+ * data array has the same type and size as the light arrays so it is told apart
+ * by matching every block's getData against it, a chunk where more than one array
+ * matches (no block with data and no light) is changed through Block.setType and
+ * the next chunk is tried, if the arrays can't be found (a different server or not
+ * running on CraftBukkit) every change is made through Block.setType
+ *
+ * a block with a tile entity (a chest, sign, furnace, ...) is always changed
+ * through Block.setType so the server takes its tile entity away
+ *
+ * @author mindless728
+ */
+public class ChunkWriter implements BlockWriter {
+	/** the amount of blocks in a chunk */
+	private static final int BLOCKS = 16 * 16 * ChunkTypes.HEIGHT;
+
+	/** the most chunks tried to tell the data array apart before giving up */
+	private static final int PROBES = 32;
+
+	/** the type ids of the blocks that have tile entities */
+	private static final boolean[] TILES = new boolean[256];
+
+	static {
+		int[] ids = {23, 25, 52, 54, 61, 62, 63, 68, 84, 116, 117, 119};
+		for(int id : ids)
+			TILES[id] = true;
+	}
+
+	/** makes the changes when the arrays can't be used, and the last change of a chunk */
+	private final BlockSetter fallback = new BlockSetter();
+
+	/** whether or not the arrays couldn't be found, every change goes through the fallback */
+	private boolean broken;
+
+	/** CraftChunk.getHandle */
+	private Method getHandle;
+
+	/** the server chunk's block type array */
+	private Field blocksField;
+
+	/** the server chunk's block data array, null until it is told apart from the light arrays */
+	private Field dataField;
+
+	/** the bytes of the data array */
+	private Field nibblesField;
+
+	/** the server chunk's arrays that could be the data array */
+	private ArrayList<Field> candidates = new ArrayList<Field>();
+
+	/** the bytes of each of the candidates */
+	private ArrayList<Field> candidateNibbles = new ArrayList<Field>();
+
+	/** the amount of chunks tried to tell the data array apart */
+	private int probes;
+
+	/** the server chunk's method that works out its light again, null if it has none */
+	private Method relight;
+
+	/** the chunk being changed */
+	private Chunk chunk;
+
+	/** the types of the chunk's blocks, null if the fallback is changing the chunk */
+	private byte[] blocks;
+
+	/** the data values of the chunk's blocks, 2 to a byte */
+	private byte[] data;
+
+	/** the server chunk */
+	private Object handle;
+
+	/** the packed key of the last block changed, it is made on end */
+	private long last;
+
+	/** the type the last block is changed to, null if there is none */
+	private Material lastType;
+
+	/** whether or not a block was written to the arrays for this chunk */
+	private boolean written;
+
+	public void begin(Chunk c) {
+		chunk = c;
+		blocks = null;
+		if(!broken) {
+			try {
+				handle = getHandle(c);
+				if(dataField != null || identify(c, handle)) {
+					blocks = (byte[])blocksField.get(handle);
+					data = (byte[])nibblesField.get(dataField.get(handle));
+				}
+			} catch(Exception e) {
+				fail(e.toString());
+				blocks = null;
+			}
+		}
+		if(blocks == null)
+			fallback.begin(c);
+	}
+
+	public int getTypeId(long key) {
+		if(blocks == null)
+			return fallback.getTypeId(key);
+		if(lastType != null && key == last)
+			return lastType.getId();
+		return blocks[index(key)] & 0xFF;
+	}
+
+	public void setType(long key, Material type) {
+		if(blocks == null) {
+			fallback.setType(key, type);
+			return;
+		}
+
+		//a tile entity has to be taken away by the server
+		if(TILES[getTypeId(key)] || TILES[type.getId() & 0xFF]) {
+			if(lastType != null && last != key)
+				write(last, lastType);
+			lastType = null;
+			fallback.begin(chunk);
+			fallback.setType(key, type);
+			fallback.end();
+			return;
+		}
+
+		//the block before is written now, this one waits to see if it is the last
+		if(lastType != null)
+			write(last, lastType);
+		last = key;
+		lastType = type;
+	}
+
+	public void end() {
+		Chunk c = chunk;
+
+		chunk = null;
+		if(blocks == null) {
+			fallback.end();
+			return;
+		}
+
+		//the last change goes through the server so the chunk is saved
+		if(lastType != null) {
+			fallback.begin(c);
+			fallback.setType(last, lastType);
+			fallback.end();
+			lastType = null;
+		}
+
+		//work the light out and send the chunk once for all of the written blocks
+		if(written) {
+			if(relight != null) {
+				try {
+					relight.invoke(handle);
+				} catch(Exception e) {
+					System.out.println("**** WARNING! could not relight chunk "+c.getX()+","+c.getZ()+": "+e+" ****");
+				}
+			}
+			c.getWorld().refreshChunk(c.getX(), c.getZ());
+		}
+
+		blocks = null;
+		data = null;
+		handle = null;
+		written = false;
+	}
+
+	/**
+	 * checks to see if the changes are being written to the arrays
+	 *
+	 * @return whether or not the arrays were found and can be used
+	 */
+	public boolean isDirect() {
+		return !broken;
+	}
+
+	/**
+	 * writes a block's type to the arrays, the block's data is cleared like Block.setType does
+	 *
+	 * @param key the packed key of the block
+	 * @param type the material of the block
+	 */
+	private void write(long key, Material type) {
+		int i = index(key), j = i >> 1;
+
+		if((blocks[i] & 0xFF) == type.getId() && (data[j] & ((i & 1) == 0 ? 0x0F : 0xF0)) == 0)
+			return;
+		blocks[i] = (byte)type.getId();
+		data[j] = (byte)(data[j] & ((i & 1) == 0 ? 0xF0 : 0x0F));
+		written = true;
+	}
+
+	/**
+	 * gets the server chunk of a chunk, finding the arrays the first time
+	 *
+	 * @param c the chunk
+	 *
+	 * @return the server chunk
+	 *
+	 * @throws Exception if the server chunk or its arrays can't be found
+	 */
+	private Object getHandle(Chunk c) throws Exception {
+		Object ret;
+		Object value;
+
+		if(getHandle != null)
+			return getHandle.invoke(c);
+
+		getHandle = c.getClass().getMethod("getHandle");
+		ret = getHandle.invoke(c);
+
+		//the names are obfuscated, find the arrays by what they hold, the data and light arrays look the same
+		for(Field f : ret.getClass().getDeclaredFields()) {
+			f.setAccessible(true);
+			value = f.get(ret);
+			if(blocksField == null && value instanceof byte[] && ((byte[])value).length == BLOCKS) {
+				blocksField = f;
+			} else if(value != null && f.getType().getSimpleName().equals("NibbleArray")) {
+				for(Field n : f.getType().getDeclaredFields()) {
+					n.setAccessible(true);
+					if(n.getType() == byte[].class && ((byte[])n.get(value)).length == BLOCKS / 2) {
+						candidates.add(f);
+						candidateNibbles.add(n);
+						break;
+					}
+				}
+			}
+		}
+		if(blocksField == null || candidates.isEmpty())
+			throw new NoSuchFieldException("block arrays of "+ret.getClass().getName());
+
+		try {
+			relight = ret.getClass().getMethod("initLighting");
+		} catch(NoSuchMethodException e) {
+			System.out.println("**** WARNING! chunks can't be relit on this server, the light is only worked out for the last change of each chunk ****");
+		}
+		return ret;
+	}
+
+	/**
+	 * tells the data array apart from the light arrays by matching every block's
+	 * data in a chunk against them
+	 *
+	 * @param c the chunk
+	 * @param h the server chunk
+	 *
+	 * @return whether or not exactly one array matched, the data array is known after
+	 *
+	 * @throws Exception if the arrays can't be read
+	 */
+	private boolean identify(Chunk c, Object h) throws Exception {
+		int found = -1, matches = 0, i;
+		byte[] nibbles;
+		boolean match;
+
+		for(int k = 0; k < candidates.size(); ++k) {
+			nibbles = (byte[])candidateNibbles.get(k).get(candidates.get(k).get(h));
+			match = true;
+			for(int x = 0; x < 16 && match; ++x) {
+				for(int z = 0; z < 16 && match; ++z) {
+					for(int y = 0; y < ChunkTypes.HEIGHT; ++y) {
+						i = (x << 11) | (z << 7) | y;
+						if(((nibbles[i >> 1] >> ((i & 1) << 2)) & 0xF) != (c.getBlock(x, y, z).getData() & 0xF)) {
+							match = false;
+							break;
+						}
+					}
+				}
+			}
+			if(match) {
+				found = k;
+				++matches;
+			}
+		}
+
+		if(matches == 1) {
+			dataField = candidates.get(found);
+			nibblesField = candidateNibbles.get(found);
+			candidates = null;
+			candidateNibbles = null;
+			return true;
+		}
+
+		//no array matched, or this chunk can't tell them apart, give up after a while
+		if(matches == 0 || ++probes >= PROBES)
+			fail("the block data array can't be told apart from the light arrays");
+		return false;
+	}
+
+	/**
+	 * stops using the arrays
+	 *
+	 * @param reason why they can't be used
+	 */
+	private void fail(String reason) {
+		broken = true;
+		System.out.println("**** WARNING! can't write the chunks directly ("+reason+"), changing the blocks one at a time ****");
+	}
+
+	/**
+	 * gets the index of a block in the chunk's arrays, like ChunkTypes
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the index of the block
+	 */
+	private static int index(long key) {
+		return ((BlockKey.getX(key) & 0xF) << 11) | ((BlockKey.getZ(key) & 0xF) << 7) | BlockKey.getY(key);
+	}
+}
@@ -0,0 +1,84 @@
+package mindless728.FluidFlow;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the threads shared by all of the fluids to run their flows on, a fluid hands
+ * it a batch of flows to run when it has some and the threads park while there
+ * is nothing to run
+ *
+ * @author mindless728
+ */
+public class FlowExecutor implements Executor {
+	/** the pool of threads that run the flows */
+	private ThreadPoolExecutor pool;
+
+	/**
+	 * Constructor taking the amount of threads to use
+	 *
+	 * @param threads the amount of threads, 0 or less uses one per processor
+	 */
+	public FlowExecutor(int threads) {
+		if(threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+
+		pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+									  new LinkedBlockingQueue<Runnable>(), new FlowThreadFactory());
+	}
+
+	/**
+	 * runs the task on one of the threads when one is free
+	 *
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		pool.execute(task);
+	}
+
+	/**
+	 * gets the amount of threads running flows
+	 *
+	 * @return the amount of threads
+	 */
+	public int getThreadCount() {
+		return pool.getMaximumPoolSize();
+	}
+
+	/** stops the threads once the tasks that are already running are done */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * waits for the threads to stop after a shutdown
+	 *
+	 * @param time the longest to wait in milli-seconds
+	 *
+	 * @return whether or not the threads stopped in time
+	 */
+	public boolean awaitTermination(long time) {
+		try {
+			return pool.awaitTermination(time, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/** names the threads and keeps them from holding the server open */
+	private static class FlowThreadFactory implements ThreadFactory {
+		/** the number of the next thread */
+		private AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, "FluidFlow-"+count.incrementAndGet());
+			ret.setDaemon(true);
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package mindless728.FluidFlow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * the queued up flows of a fluid
+ *
+ * when partitioned the flows are split into 16x16x16 regions of the world and a
+ * thread takes a whole region to run, so flows in the same region never run at
+ * the same time while flows in different regions can, when not partitioned there
+ * is a single region and the flows run in the order they were added
+ *
+ * when deduplicating a block can only be in the queue once, adding a block that
+ * is already waiting does nothing since the waiting flow will see the same world
+ * when it runs, the amount of flows dropped this way is counted
+ *
+ * @author mindless728
+ */
+public class FlowQueue {
+	/** the amount of bits in the size of a region */
+	public static final int REGION_BITS = 4;
+
+	/** whether or not the flows are split into regions */
+	private final boolean partitioned;
+
+	/** the packed keys of the blocks waiting in the queue, null if not deduplicating */
+	private final LongIntMap members;
+
+	/** the amount of flows dropped because the block was already waiting */
+	private final AtomicLong duplicates;
+
+	/** the regions with flows, by the packed region key */
+	private final LongObjectMap<FlowRegion> regions;
+
+	/** the order of the regions that have flows to run */
+	private final ConcurrentLinkedQueue<FlowRegion> ready;
+
+	/** the amount of flows in the queue */
+	private final AtomicInteger count;
+
+	/** the amount of regions in the ready queue */
+	private final AtomicInteger readyCount;
+
+	/**
+	 * Constructor taking whether or not to split the flows into regions and drop duplicates
+	 *
+	 * @param p whether or not the flows are split into regions
+	 * @param d whether or not a block that is already waiting is dropped
+	 */
+	public FlowQueue(boolean p, boolean d) {
+		partitioned = p;
+		members = d ? new LongIntMap() : null;
+		duplicates = new AtomicLong();
+		regions = new LongObjectMap<FlowRegion>();
+		ready = new ConcurrentLinkedQueue<FlowRegion>();
+		count = new AtomicInteger();
+		readyCount = new AtomicInteger();
+	}
+
+	/**
+	 * gets the key of the region a block is in
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the packed key of the region, 0 for every block if not partitioned
+	 */
+	public long getRegionKey(long key) {
+		if(!partitioned)
+			return 0;
+		return BlockKey.pack(BlockKey.getWorldId(key), BlockKey.getX(key) >> REGION_BITS,
+							 BlockKey.getY(key) >> REGION_BITS, BlockKey.getZ(key) >> REGION_BITS);
+	}
+
+	/**
+	 * adds a flow to the end of its region
+	 *
+	 * @param fb the flow to add
+	 *
+	 * @return whether or not the flow was added, false if the block was already waiting
+	 */
+	public boolean add(FluidBlock fb) {
+		long regionKey;
+		FlowRegion region;
+
+		//drop the flow if the block is already waiting to flow
+		if(members != null && members.put(fb.key, 1) != LongIntMap.NO_VALUE) {
+			duplicates.incrementAndGet();
+			return false;
+		}
+
+		regionKey = getRegionKey(fb.key);
+		while(true) {
+			region = regions.get(regionKey);
+
+			//get the region the flow is in, creating it if it has no flows yet
+			if(region == null) {
+				FlowRegion temp = new FlowRegion(regionKey);
+				if((region = regions.putIfAbsent(regionKey, temp)) == null)
+					region = temp;
+			}
+
+			if(region.add(fb))
+				break;
+
+			//the region was just given back empty, take it out if it is still there and get a new one
+			regions.remove(regionKey, region);
+		}
+		count.incrementAndGet();
+
+		//put the region in the order if it isn't already there
+		if(region.queued.compareAndSet(false, true))
+			offer(region);
+		return true;
+	}
+
+	/**
+	 * takes the next region that has flows, nothing else can take the region
+	 * until it is given back with release
+	 *
+	 * @return the next region with flows, null if there are none
+	 */
+	public FlowRegion pollRegion() {
+		FlowRegion ret = ready.poll();
+		if(ret != null)
+			readyCount.decrementAndGet();
+		return ret;
+	}
+
+	/**
+	 * removes the first flow in a region
+	 *
+	 * @param region the region taken from pollRegion
+	 *
+	 * @return the first flow in the region, null if there are none
+	 */
+	public FluidBlock poll(FlowRegion region) {
+		FluidBlock ret = region.flows.poll();
+		if(ret != null) {
+			count.decrementAndGet();
+
+			//the block can be added again as soon as it is taken out, before it flows
+			if(members != null)
+				members.remove(ret.key);
+		}
+		return ret;
+	}
+
+	/**
+	 * gives back a region taken from pollRegion, if it still has flows it goes
+	 * to the end of the order
+	 *
+	 * @param region the region taken from pollRegion
+	 */
+	public void release(FlowRegion region) {
+		//the region stays queued while it has flows, a flow added while it was taken is seen here
+		if(!region.kill()) {
+			offer(region);
+			return;
+		}
+
+		//the region is done, the next flow in it makes a new one
+		regions.remove(region.key, region);
+	}
+
+	/**
+	 * removes the first flow of the next region
+	 *
+	 * @return the flow if there is one, null otherwise
+	 */
+	public FluidBlock poll() {
+		FlowRegion region;
+		FluidBlock ret;
+
+		while((region = pollRegion()) != null) {
+			ret = poll(region);
+			release(region);
+			if(ret != null)
+				return ret;
+		}
+		return null;
+	}
+
+	/**
+	 * grabs the amount of flows
+	 *
+	 * @return the amount of flows in the queue
+	 */
+	public int size() {
+		return Math.max(count.get(), 0);
+	}
+
+	/**
+	 * checks to see if the queue is empty
+	 *
+	 * @return whether or not there are any flows in the queue
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * grabs the amount of regions waiting for a thread
+	 *
+	 * @return the amount of regions in the ready queue
+	 */
+	public int readyRegions() {
+		return Math.max(readyCount.get(), 0);
+	}
+
+	/**
+	 * grabs the amount of flows dropped because the block was already waiting
+	 *
+	 * @return the amount of duplicate flows dropped
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * checks to see if duplicate flows are dropped
+	 *
+	 * @return whether or not the queue deduplicates
+	 */
+	public boolean isDeduplicating() {
+		return members != null;
+	}
+
+	/**
+	 * checks to see if the flows are split into regions
+	 *
+	 * @return whether or not the queue is partitioned
+	 */
+	public boolean isPartitioned() {
+		return partitioned;
+	}
+
+	/**
+	 * appends the flows that are waiting to a journal, flows added or run while
+	 * this runs may or may not be appended
+	 *
+	 * @param journal the journal to append to
+	 */
+	void journal(Journal journal) {
+		ArrayList<FlowRegion> temp = regions.values(new ArrayList<FlowRegion>());
+
+		for(FlowRegion region : temp)
+			for(FluidBlock fb : region.flows)
+				journal.flow(fb.key);
+	}
+
+	/**
+	 * throws away the flows in the chunks with the highest priority (the farthest
+	 * from the players by default) until the queue is down to a target size, whole
+	 * chunks are dropped so it can go under, must only be called while nothing is
+	 * taking flows out of the queue
+	 *
+	 * @param priority the priority of the chunks, higher is dropped first
+	 * @param target the amount of flows to keep
+	 *
+	 * @return the amount of flows thrown away
+	 */
+	int dropFarthest(final ChunkPriority priority, int target) {
+		ArrayList<FlowRegion> temp = regions.values(new ArrayList<FlowRegion>());
+		ArrayList<Long> chunks = new ArrayList<Long>();
+		LongIntMap perChunk = new LongIntMap(), doomed = new LongIntMap();
+		Iterator<FluidBlock> it;
+		FluidBlock fb;
+		long chunkKey;
+		int n, over = size() - target, ret = 0;
+
+		if(over <= 0)
+			return 0;
+
+		//count the flows in each chunk
+		for(FlowRegion region : temp) {
+			for(FluidBlock f : region.flows) {
+				chunkKey = BlockKey.getChunkKey(f.key);
+				if((n = perChunk.get(chunkKey)) == LongIntMap.NO_VALUE) {
+					n = 0;
+					chunks.add(chunkKey);
+				}
+				perChunk.put(chunkKey, n + 1);
+			}
+		}
+
+		//pick the farthest chunks until they cover enough flows
+		Collections.sort(chunks, new Comparator<Long>() {
+			public int compare(Long a, Long b) {
+				return Double.compare(priority.getPriority(b), priority.getPriority(a));
+			}
+		});
+		for(int i = 0; i < chunks.size() && over > 0; ++i) {
+			n = perChunk.get(chunks.get(i));
+			doomed.put(chunks.get(i), n);
+			over -= n;
+		}
+
+		//take their flows out
+		for(FlowRegion region : temp) {
+			for(it = region.flows.iterator(); it.hasNext();) {
+				fb = it.next();
+				if(!doomed.containsKey(BlockKey.getChunkKey(fb.key)))
+					continue;
+				it.remove();
+				count.decrementAndGet();
+				if(members != null)
+					members.remove(fb.key);
+				++ret;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * puts a region at the end of the order
+	 *
+	 * @param region the region to add
+	 */
+	private void offer(FlowRegion region) {
+		readyCount.incrementAndGet();
+		ready.add(region);
+	}
+}
@@ -0,0 +1,89 @@
+package mindless728.FluidFlow;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the flows of a fluid that are in a single region of the world, a region is
+ * only ever run by one thread at a time
+ *
+ * once a region is given back empty it is dead, nothing can be added to it and
+ * it is taken out of the queue's regions, so a key only ever has one live region,
+ * this is done without a lock so adding a flow never waits on the thread giving
+ * the region back
+ *
+ * @author mindless728
+ */
+public class FlowRegion {
+	/** the state of a region being checked for flows by the thread that took it */
+	private static final int KILLING = -1;
+
+	/** the state of a region that was given back empty, nothing can be added after */
+	private static final int DEAD = -2;
+
+	/** the packed key of the region, see FlowQueue.getRegionKey */
+	public final long key;
+
+	/** the order of the flows in this region */
+	final ConcurrentLinkedQueue<FluidBlock> flows;
+
+	/** whether or not the region is waiting in (or taken from) the ready queue */
+	final AtomicBoolean queued;
+
+	/** the amount of adds in progress, or KILLING or DEAD */
+	private final AtomicInteger state = new AtomicInteger();
+
+	/**
+	 * Constructor taking the packed key of the region
+	 *
+	 * @param k the packed key of the region
+	 */
+	public FlowRegion(long k) {
+		key = k;
+		flows = new ConcurrentLinkedQueue<FluidBlock>();
+		queued = new AtomicBoolean();
+	}
+
+	/**
+	 * adds a flow to the end of the region
+	 *
+	 * @param fb the flow to add
+	 *
+	 * @return whether or not it was added, false if the region is dead
+	 */
+	boolean add(FluidBlock fb) {
+		int s;
+
+		//only waits out the few instructions kill takes to look at the flows
+		while(true) {
+			s = state.get();
+			if(s == DEAD)
+				return false;
+			if(s == KILLING)
+				Thread.yield();
+			else if(state.compareAndSet(s, s + 1))
+				break;
+		}
+		flows.add(fb);
+		state.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * kills the region if it has no flows left, only called by the thread that took it
+	 *
+	 * @return whether or not the region is dead
+	 */
+	boolean kill() {
+		//an add in progress means the region is getting a flow
+		if(!state.compareAndSet(0, KILLING))
+			return false;
+		if(!flows.isEmpty()) {
+			state.set(0);
+			return false;
+		}
+		state.set(DEAD);
+		return true;
+	}
+}
@@ -0,0 +1,159 @@
+package mindless728.FluidFlow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * a queue of flows kept on disk as packed keys, the flows a fluid has over its
+ * limit are written here and read back once its flow queue has room again
+ *
+ * the keys are only good while the server runs since the world ids change between
+ * restarts, the file is emptied when it is opened and deleted when it is closed
+ *
+ * @author mindless728
+ */
+public class FlowSpill {
+	/** the bytes in a key */
+	private static final int KEY = 8;
+
+	/** the file the keys are kept in */
+	private File file;
+
+	/** the channel to the file */
+	private FileChannel channel;
+
+	/** the keys waiting to be written */
+	private ByteBuffer writeBuffer;
+
+	/** the buffer the keys are read into */
+	private ByteBuffer readBuffer;
+
+	/** where the next key is written in the file */
+	private long writePosition;
+
+	/** where the next key is read from in the file */
+	private long readPosition;
+
+	/** the amount of keys in the queue */
+	private volatile int count;
+
+	/**
+	 * Constructor that opens the file, throwing away anything in it
+	 *
+	 * @param f the file to keep the keys in
+	 */
+	public FlowSpill(File f) throws IOException {
+		RandomAccessFile raf;
+
+		file = f;
+		if(file.getParentFile() != null && !file.getParentFile().exists())
+			file.getParentFile().mkdirs();
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+		writeBuffer = ByteBuffer.allocate(1024 * KEY);
+		readBuffer = ByteBuffer.allocate(1024 * KEY);
+	}
+
+	/**
+	 * adds a flow to the end of the queue
+	 *
+	 * @param key the packed key of the flow
+	 */
+	public synchronized void add(long key) throws IOException {
+		if(!writeBuffer.hasRemaining())
+			flush();
+		writeBuffer.putLong(key);
+		++count;
+	}
+
+	/**
+	 * takes flows from the front of the queue
+	 *
+	 * @param keys where the packed keys are put
+	 * @param max the most keys to take
+	 *
+	 * @return the amount of keys taken
+	 */
+	public synchronized int poll(long[] keys, int max) throws IOException {
+		int ret = 0;
+
+		flush();
+		max = Math.min(max, keys.length);
+		while(ret < max && readPosition < writePosition) {
+			readBuffer.clear();
+			readBuffer.limit((int)Math.min(readBuffer.capacity(), Math.min(writePosition - readPosition, (long)(max - ret) * KEY)));
+			while(readBuffer.hasRemaining())
+				readPosition += channel.read(readBuffer, readPosition);
+			readBuffer.flip();
+			while(readBuffer.remaining() >= KEY)
+				keys[ret++] = readBuffer.getLong();
+		}
+		count -= ret;
+
+		//start the file over once it is all read
+		if(readPosition == writePosition) {
+			readPosition = writePosition = 0;
+			channel.truncate(0);
+		}
+		return ret;
+	}
+
+	/**
+	 * appends the flows in the queue to a journal without taking them out
+	 *
+	 * @param journal the journal to append to
+	 */
+	synchronized void journal(Journal journal) throws IOException {
+		long p = readPosition;
+
+		flush();
+		while(p < writePosition) {
+			readBuffer.clear();
+			readBuffer.limit((int)Math.min(readBuffer.capacity(), writePosition - p));
+			while(readBuffer.hasRemaining())
+				p += channel.read(readBuffer, p);
+			readBuffer.flip();
+			while(readBuffer.remaining() >= KEY)
+				journal.flow(readBuffer.getLong());
+		}
+	}
+
+	/**
+	 * gets the amount of flows in the queue
+	 *
+	 * @return the amount of flows on disk
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * checks to see if the queue is empty
+	 *
+	 * @return whether or not there are flows on disk
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/** closes and deletes the file, the flows in it are thrown away */
+	public synchronized void close() {
+		try {
+			channel.close();
+		} catch(IOException ioe) {}
+		file.delete();
+		count = 0;
+	}
+
+	/** writes the keys waiting in the write buffer to the file */
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		while(writeBuffer.hasRemaining())
+			writePosition += channel.write(writeBuffer, writePosition);
+		writeBuffer.clear();
+	}
+}
@@ -5,60 +5,180 @@ import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.util.config.Configuration;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * the base fluid that is inherited by other plugin devs to create fluids
  *
+ * the flows of a fluid are run in batches on the threads of a FlowExecutor, by
+ * default at most one batch of a fluid runs at a time so flow() never runs on two
+ * threads at once, when the fluid has no flows it takes no thread at all
+ *
+ * a fluid whose flow() is safe to run on several threads can turn on parallel in
+ * its config, the flows are then split into 16x16x16 regions and several batches
+ * run at once, each on its own region, so two flows in the same region never run
+ * at the same time and neighbouring regions see each other through getType/setType
+ *
+ * a fluid that goes over its limit of flows or changes is throttled, its batches
+ * stop and the server thread lets one small batch run each tick until the block
+ * changer has made enough of its changes, with the spill policy the flows over the
+ * limit are kept on disk instead and with the drop policy the flows farthest from
+ * the players are thrown away
+ *
+ * the regions of the world where the fluid's flows stop changing anything for
+ * FluidFlow.sleepTicks ticks are put to sleep and the flows taken out of them are
+ * thrown away until a change next to them or a player wakes them up
+ *
+ * a flow that reads a block in a chunk that isn't loaded sees bedrock there and is
+ * parked on that chunk, it runs again when the chunk loads, so fluids never load
+ * chunks themselves
+ *
+ * a fluid that needs state for each block (a level, pressure, ...) adds fields to
+ * getState() when it is created and gets and sets them by the packed block key
+ *
+ * a fluid that is a rule over each block and its neighbours can extend
+ * CellularFluid instead, which steps whole regions at a time
+ *
  * @author mindless728
  */
 public abstract class Fluid extends JavaPlugin implements Runnable {
 	/** the queued up flows */
-	private LinkedList<FluidBlock> flows;
+	private FlowQueue flows;
 
 	/** this fluids changed blocks */
 	private ChangedBlocks changedBlocks;
 
-	/** all of the changed blocks */
-	private static HashMap<Fluid, ChangedBlocks> allChanges;
+	/** the copies of the chunks the fluids read block types from */
+	private static ChunkCache chunkCache;
+
+	/** the type id a block in a chunk that isn't loaded reads as, bedrock so nothing flows into it */
+	public static final int UNLOADED_TYPE = 7;
+
+	/** marks a flow that didn't read an unloaded chunk */
+	private static final long NOT_PARKED = Long.MIN_VALUE;
+
+	/** the flow running on each thread, the chunk it read while it wasn't loaded and the amount of changes it made */
+	private static final ThreadLocal<long[]> flowing = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[] {NOT_PARKED, 0};
+		}
+	};
 
 	/** the FluidFlow plugin, needed for fluid registration */
 	private FluidFlow plugin;
 
 	/** tells whether the fluid is running or not */
-	private boolean running;
+	private volatile boolean running;
+
+	/** the amount of batches of flows waiting for or running on the executor */
+	private AtomicInteger active;
+
+	/** the most batches of flows that can run at once, 1 unless parallel */
+	private int workers = 1;
 
-	/** tells whether the fluid is stopped or not */
-	private boolean stopped;
+	/** the executor the batches of flows are run on */
+	private Executor executor;
 
-	/** the sleep time to wait if there are no flows, in nano-seconds */
-	private int sleepTime = 100000;
+	/** the amount of flows run in a batch before giving the thread to other fluids */
+	private int batchSize = 1000;
+
+	/** the share of the block changer's changes the fluid gets against the other fluids */
+	private int weight = 1;
 
 	/** the configuration for the plugin */
 	private Configuration config;
 
+	/** the numbers kept about the fluid for the stats */
+	private FluidMetrics metrics;
+
+	/** the journal of the pending changes and flows, null if they aren't kept */
+	private Journal journal;
+
+	/** the state of each block kept off the heap */
+	private FluidState state;
+
+	/** the flows waiting on chunks to load */
+	private ParkedFlows parked;
+
+	/** the policy that throttles the fluid when it is over its limits */
+	public static final String THROTTLE = "throttle";
+
+	/** the policy that keeps the flows over the limit on disk */
+	public static final String SPILL = "spill";
+
+	/** the policy that throws away the flows farthest from the players */
+	public static final String DROP = "drop";
+
+	/** the amount of flows run in a throttled batch, and how often a batch checks the limits */
+	private static final int THROTTLED_BATCH = 64;
+
+	/** the most flows the fluid can have waiting, 0 for no limit */
+	private int maxFlows = 1000000;
+
+	/** the most changes the fluid can have waiting, 0 for no limit */
+	private int maxChanges = 1000000;
+
+	/** what is done with the flows over the limit */
+	private String overflow = THROTTLE;
+
+	/** whether or not the fluid is over a limit and only runs a small batch each tick */
+	private volatile boolean throttled;
+
+	/** the amount of times the fluid was throttled */
+	private AtomicLong throttles;
+
+	/** the flows kept on disk with the spill policy, null otherwise */
+	private FlowSpill spill;
+
+	/** the amount of flows written to disk */
+	private AtomicLong spilled;
+
+	/** the amount of flows thrown away with the drop policy */
+	private AtomicLong dropped;
+
+	/** the keys read back from disk, only used by the server thread */
+	private long[] unspilled;
+
+	/** the folder the flows are spilled to */
+	private File spillFolder;
+
+	/** the amount of ticks a region has flows without changes before it sleeps, 0 to never sleep */
+	private int sleepTicks = 100;
+
+	/** the regions the fluid is still changing, null if regions never sleep */
+	private volatile RegionActivity activity;
+
 	/**
-	 * lets all fluids know about each other's changes, for synchronizing between
-	 * fluids to let each other know about cahnged blocks
+	 * sets the copies of the chunks all fluids read block types from
 	 *
-	 * @param ac the mapping from fluids to changed blocks
+	 * @param cc the chunk cache, null once the plugin is disabled, every chunk then reads as unloaded
 	 */
-	protected static void setAllChanges(HashMap<Fluid, ChangedBlocks> ac) {
-		allChanges = ac;
+	protected static void setChunkCache(ChunkCache cc) {
+		chunkCache = cc;
 	}
 
 	/** default constructor */
 	public Fluid() {
 		//creates the list object to hold the flows in order
-		flows = new LinkedList<FluidBlock>();
+		flows = new FlowQueue(false, true);
+		active = new AtomicInteger();
+		metrics = new FluidMetrics(this);
+		state = new FluidState();
+		parked = new ParkedFlows();
+		throttles = new AtomicLong();
+		spilled = new AtomicLong();
+		dropped = new AtomicLong();
 
 		running = false;
-		stopped = false;
 	}
 
 	/** called when the fluid is enabled */
 	public void onEnable() {
+		long interval = 0;
+
 		//get the fluid flow plugin
 		plugin = (FluidFlow)getServer().getPluginManager().getPlugin("FluidFlow");
 
@@ -70,23 +190,124 @@ public abstract class Fluid extends JavaPlugin implements Runnable {
 			return;
 		}
 
-		//grab the sleep timer
-		sleepTime = plugin.getConfig().getInt("Fluid.sleepTime",sleepTime);
+		//grab the batch size
+		batchSize = plugin.getConfig().getInt("Fluid.batchSize", batchSize);
+		spillFolder = new File(plugin.getDataFolder(), "spill");
+
+		//keep a journal of the pending changes and flows so they survive a restart
+		if(plugin.getConfig().getBoolean("Journal.enabled", true)) {
+			journal = new Journal(new File(plugin.getDataFolder(), "journal"), getDescription().getName(),
+								  plugin.getConfig().getInt("Journal.segmentSize", 4 * 1024 * 1024));
+			interval = plugin.getConfig().getInt("Journal.checkpointInterval", 60) * 20L;
+		}
 		plugin.getConfig().save();
 
 		//get the configuration for the plugin
 		config = new Configuration(new File(plugin.getDataFolder().getPath()+File.separator+getDescription().getName()+".yml"));
 		config.save();
 
+		//initialize and start the fluid
+		enable(changedBlocks, config, getExecutor(), journal);
+
+		//write the journal out every so often so it doesn't replay changes long since made
+		if(journal != null && interval > 0) {
+			getServer().getScheduler().scheduleAsyncRepeatingTask(this, new Runnable() {
+				public void run() {
+					Journal j = journal;
+					if(j != null)
+						j.checkpoint();
+				}
+			}, interval, interval);
+		}
+
+		//tell the operator that the plugin is enabled
+		System.out.println(getDescription().getName()+" version "+getDescription().getVersion()+" enabled");
+	}
+
+	/**
+	 * initializes the fluid and starts running its flows without a journal, this is
+	 * everything onEnable does after registering with FluidFlow, so a fluid can be
+	 * run without a server
+	 *
+	 * @param cb the changed blocks the fluid's changes go in
+	 * @param c the configuration for the fluid
+	 * @param e the executor to run the flows on
+	 */
+	void enable(ChangedBlocks cb, Configuration c, Executor e) {
+		enable(cb, c, e, null);
+	}
+
+	/**
+	 * initializes the fluid, replays its journal and starts running its flows
+	 *
+	 * @param cb the changed blocks the fluid's changes go in
+	 * @param c the configuration for the fluid
+	 * @param e the executor to run the flows on
+	 * @param j the journal of the pending changes and flows, null to not keep one
+	 */
+	void enable(ChangedBlocks cb, Configuration c, Executor e, Journal j) {
+		boolean parallel, dedupe;
+		int replayed;
+
+		changedBlocks = cb;
+		config = c;
+
 		//initialize the fluid
 		init(config);
+
+		//split the flows into regions if the fluid can run on several threads
+		parallel = config.getBoolean("FluidFlow.parallel", false);
+		if(parallel) {
+			workers = config.getInt("FluidFlow.workers", 0);
+			if(workers <= 0)
+				workers = Runtime.getRuntime().availableProcessors();
+		}
+
+		//the fluid's share of the block changer
+		weight = Math.max(1, config.getInt("FluidFlow.weight", weight));
+
+		//drop flows for blocks that are already waiting to flow unless the fluid needs every one
+		dedupe = config.getBoolean("FluidFlow.dedupeFlows", true);
+		if(parallel != flows.isPartitioned() || dedupe != flows.isDeduplicating())
+			setFlowQueue(new FlowQueue(parallel, dedupe));
+
+		//the limits that keep a runaway flood from running the server out of memory
+		maxFlows = Math.max(0, config.getInt("FluidFlow.maxFlows", maxFlows));
+		maxChanges = Math.max(0, config.getInt("FluidFlow.maxChanges", maxChanges));
+		overflow = config.getString("FluidFlow.overflow", overflow).toLowerCase();
+		if(!overflow.equals(SPILL) && !overflow.equals(DROP))
+			overflow = THROTTLE;
+		if(overflow.equals(SPILL) && maxFlows > 0) {
+			try {
+				if(spillFolder == null)
+					spillFolder = new File(System.getProperty("java.io.tmpdir"));
+				spill = new FlowSpill(new File(spillFolder, getMaterial().name().toLowerCase()+".spill"));
+				unspilled = new long[Math.max(1, Math.min(maxFlows / 2, 65536))];
+			} catch(IOException ioe) {
+				System.out.println("**** ERROR! "+getMaterial()+": could not open the spill file, throttling instead: "+ioe.getMessage()+" ****");
+				overflow = THROTTLE;
+			}
+		}
+
+		//let the regions that stopped changing sleep
+		sleepTicks = Math.max(0, config.getInt("FluidFlow.sleepTicks", sleepTicks));
+		activity = (sleepTicks > 0) ? new RegionActivity(sleepTicks) : null;
 		config.save();
-		
-		//start the fluid's asynchronous thread
-		start();
 
-		//tell the operator that the plugin is enabled
-		System.out.println(getDescription().getName()+" version "+getDescription().getVersion()+" enabled");
+		//put back the changes and flows that were pending when the server stopped
+		journal = j;
+		if(journal != null) {
+			journal.setSpill(spill);
+			journal.setParked(parked);
+			replayed = journal.open(changedBlocks, flows, getServer());
+			if(replayed < 0)
+				journal = null;
+			else if(replayed > 0)
+				System.out.println(getMaterial()+": replayed "+replayed+" changes and flows from the journal");
+		}
+
+		//start running the fluid's flows
+		start(e);
 	}
 
 	/** called when the fluid is disabled */
@@ -102,6 +323,7 @@ public abstract class Fluid extends JavaPlugin implements Runnable {
 	 */
 	public void addFlow(FluidBlock flow) {
 		flowChange(flow);
+		schedule();
 	}
 
 	/**
@@ -120,46 +342,411 @@ public abstract class Fluid extends JavaPlugin implements Runnable {
 	 *
 	 * @return the flow if removing a flow and one exists, null otherwise
 	 */
-	public synchronized FluidBlock flowChange(FluidBlock flow) {
-		FluidBlock ret = null;
+	public FluidBlock flowChange(FluidBlock flow) {
 		//check to see if you are adding or removing
 		if(flow != null) {
-			//adding
-			flows.add(flow);
-			ret = null;
-		} else if(flows.size() > 0) {
-			//removing
-			ret = flows.remove();
+			//adding, only journal the flows that weren't dropped as duplicates
+			Journal j = journal;
+			if(!spill(flow) && !flows.add(flow))
+				return null;
+			if(j != null)
+				j.flow(flow.key);
+			return null;
 		}
-		return ret;
+
+		//removing
+		return flows.poll();
 	}
 
-	/** the separate thread that runs the fluid */
+	/** runs a batch of flows on one of the executor's threads */
 	public void run() {
+		FlowRegion region;
 		FluidBlock temp;
+		RegionActivity a = activity;
+		long[] state = flowing.get();
+		int count = 0;
+		int limit = throttled ? THROTTLED_BATCH : batchSize;
+
+		try {
+			//run regions of flows until there are none left or the batch is done, a throttled fluid only runs a small batch
+			while(running && count < limit && (region = flows.pollRegion()) != null) {
+				//let another batch take the other regions
+				schedule();
+
+				try {
+					//run the region's flows, no other batch has the region
+					while(running && count < limit && (temp = flows.poll(region)) != null) {
+						//a flow in a region that stopped changing is thrown away
+						++count;
+						if(a != null && a.isAsleep(temp.key))
+							continue;
+
+						//pass the flow to the actual flow method, park it if it read a chunk that isn't loaded
+						state[0] = NOT_PARKED;
+						state[1] = 0;
+						flow(temp);
+						if(state[0] != NOT_PARKED)
+							park(state[0], temp.key);
+						else if(a != null && state[1] == 0)
+							a.ran(temp.key);
+
+						//stop the whole batch once the fluid goes over a limit
+						if(count % THROTTLED_BATCH == 0 && (throttled || throttle())) {
+							limit = count;
+							break;
+						}
+					}
+				} finally {
+					flows.release(region);
+				}
+			}
+		} finally {
+			//the batch is done, run another one if flows came in
+			metrics.flowsRun(count);
+			finished();
+		}
+	}
 
-		//set the state to running and not stopped
-		running = true;
-		stopped = false;
-
-		//loop while the fluid is running
-		while(running) {
-			//get the next flow
-			temp = getFlow();
-
-			//test to see if there wasn't a flow
-			if(temp == null) {
-				//wait a small amount of time
-				sleep(sleepTime);
-				continue;
+	/**
+	 * runs a task for the fluid on the executor, it counts as a batch so the fluid
+	 * isn't idle and doesn't stop until it is done
+	 *
+	 * @param task the task to run
+	 */
+	void execute(final Runnable task) {
+		if(!running)
+			return;
+		active.incrementAndGet();
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					finished();
+				}
 			}
+		});
+	}
+
+	/** called when a batch or task is done, runs another batch if flows came in */
+	private void finished() {
+		active.decrementAndGet();
+		if(running)
+			schedule();
+		else
+			synchronized(this) {
+				notifyAll();
+			}
+	}
+
+	/** hands a batch of flows to the executor if there are regions waiting and fewer batches than workers */
+	private void schedule() {
+		int a;
 
-			//pass the flow to the actual flow method
-			flow(temp);
+		while(running && !throttled && flows.readyRegions() > 0) {
+			if((a = active.get()) >= workers)
+				return;
+			if(active.compareAndSet(a, a + 1)) {
+				executor.execute(this);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * writes a flow to disk if the spill policy is on and the flow queue is full
+	 *
+	 * @param flow the flow to add
+	 *
+	 * @return whether or not the flow was written to disk
+	 */
+	private boolean spill(FluidBlock flow) {
+		FlowSpill s = spill;
+
+		if(s == null || flows.size() < maxFlows)
+			return false;
+		try {
+			if(s.isEmpty())
+				System.out.println("**** WARNING! "+getMaterial()+": over "+maxFlows+" flows, spilling the rest to disk ****");
+			s.add(flow.key);
+			spilled.incrementAndGet();
+			return true;
+		} catch(IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * throttles the fluid if it is over a limit, with the spill policy the flows
+	 * never go over their limit so only the changes are checked
+	 *
+	 * @return whether or not the fluid was throttled
+	 */
+	private boolean throttle() {
+		int f = flows.size(), c = changedBlocks.size();
+
+		if(!(maxChanges > 0 && c > maxChanges) && !(maxFlows > 0 && spill == null && f > maxFlows))
+			return false;
+
+		synchronized(this) {
+			if(throttled)
+				return true;
+			throttled = true;
+		}
+		throttles.incrementAndGet();
+		System.out.println("**** WARNING! "+getMaterial()+": "+f+" flows and "+c+" changes waiting, over the limit of "+
+						   maxFlows+" flows or "+maxChanges+" changes, throttling ("+overflow+") ****");
+		return true;
+	}
+
+	/**
+	 * called by the block changer every tick on the server thread to deal with a
+	 * fluid over its limits, lets a throttled fluid run a small batch, throws away
+	 * the farthest flows with the drop policy and reads spilled flows back in
+	 *
+	 * @param nearest the priority from the distance to the nearest online player
+	 */
+	void relieve(ChunkPriority nearest) {
+		int n, count;
+
+		if(!running)
+			return;
+
+		//throw away the farthest flows, only while no batch is running so nothing else takes flows out
+		if(throttled && overflow.equals(DROP) && maxFlows > 0 && flows.size() > maxFlows && active.get() == 0) {
+			n = flows.dropFarthest(getChunkPriority(nearest), maxFlows * 9 / 10);
+			dropped.addAndGet(n);
+			System.out.println("**** WARNING! "+getMaterial()+": dropped "+n+" flows farthest from the players ****");
+		}
+
+		//read spilled flows back in while there is room
+		if(spill != null && !spill.isEmpty() && (count = maxFlows / 2 - flows.size()) > 0) {
+			try {
+				n = spill.poll(unspilled, count);
+				for(int i = 0; i < n; ++i)
+					flows.add(new FluidBlock(unspilled[i]));
+			} catch(IOException ioe) {
+				System.out.println("**** ERROR! "+getMaterial()+": could not read spilled flows: "+ioe.getMessage()+" ****");
+			}
+		}
+
+		if(!throttled) {
+			schedule();
+			return;
 		}
 
-		//if you get here, the fluid is stopped
-		stopped = true;
+		//back under the limits with some room, run like normal again
+		if((maxChanges == 0 || changedBlocks.size() < maxChanges * 9 / 10) &&
+		   (maxFlows == 0 || spill != null || flows.size() < maxFlows * 9 / 10)) {
+			throttled = false;
+			System.out.println(getMaterial()+": back under the limits, no longer throttled");
+			schedule();
+			return;
+		}
+
+		//let one small batch of THROTTLED_BATCH flows run so the flows still go down
+		if(flows.readyRegions() > 0 && active.compareAndSet(0, 1))
+			executor.execute(this);
+	}
+
+	/**
+	 * called by the block changer every tick on the server thread before it makes
+	 * the changes, for fluids that do work between ticks
+	 */
+	void tick() {
+		RegionActivity a = activity;
+		if(a != null)
+			a.tick();
+	}
+
+	/**
+	 * parks a flow on a chunk that isn't loaded
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 * @param key the packed key of the flow's block
+	 */
+	private void park(long chunkKey, long key) {
+		ChunkCache cache = chunkCache;
+
+		parked.park(chunkKey, key);
+
+		//the chunk may have loaded while the flow ran
+		if(cache != null && !cache.isUnloaded(chunkKey))
+			unpark(chunkKey);
+	}
+
+	/**
+	 * runs the flows that were waiting on a chunk to load, called on the server thread
+	 *
+	 * @param chunkKey the packed key of the chunk that loaded
+	 */
+	void unpark(long chunkKey) {
+		for(long key : parked.unpark(chunkKey))
+			flowChange(new FluidBlock(key));
+		schedule();
+	}
+
+	/**
+	 * gets the flows waiting on chunks to load
+	 *
+	 * @return the parked flows
+	 */
+	public ParkedFlows getParkedFlows() {
+		return parked;
+	}
+
+	/**
+	 * wakes the regions around a block, called when a player changes the block
+	 *
+	 * @param key the packed key of the block
+	 */
+	public void wake(long key) {
+		RegionActivity a = activity;
+		if(a != null)
+			a.wake(key);
+	}
+
+	/**
+	 * gets the regions the fluid is still changing
+	 *
+	 * @return the activity of the regions, null if regions never sleep
+	 */
+	public RegionActivity getActivity() {
+		return activity;
+	}
+
+	/**
+	 * checks to see if the fluid has no flows waiting and no batches running
+	 *
+	 * @return whether or not the fluid is idle
+	 */
+	boolean isIdle() {
+		return flows.isEmpty() && active.get() == 0;
+	}
+
+	/**
+	 * checks to see if the fluid is throttled for being over a limit
+	 *
+	 * @return whether or not the fluid is throttled
+	 */
+	public boolean isThrottled() {
+		return throttled;
+	}
+
+	/**
+	 * @return the amount of times the fluid was throttled
+	 */
+	public long getThrottleCount() {
+		return throttles.get();
+	}
+
+	/**
+	 * @return the amount of flows written to disk since the fluid started
+	 */
+	public long getSpilledFlowCount() {
+		return spilled.get();
+	}
+
+	/**
+	 * @return the amount of flows on disk now
+	 */
+	public int getSpillSize() {
+		FlowSpill s = spill;
+		return (s == null) ? 0 : s.size();
+	}
+
+	/**
+	 * @return the amount of flows thrown away for being over the limit
+	 */
+	public long getDroppedFlowCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * checks to see if there are flows waiting
+	 *
+	 * @return whether or not there are flows in the flows list
+	 */
+	public boolean hasFlows() {
+		return !flows.isEmpty() || getSpillSize() > 0 || parked.size() > 0;
+	}
+
+	/**
+	 * gets the amount of flows waiting
+	 *
+	 * @return the amount of flows in the flows list
+	 */
+	public int getFlowCount() {
+		return flows.size();
+	}
+
+	/**
+	 * gets the amount of chunks that aren't loaded with changes waiting for them
+	 *
+	 * @return the amount of parked chunks
+	 */
+	public int getParkedChunkCount() {
+		return changedBlocks.getParkedChunkCount();
+	}
+
+	/**
+	 * gets the amount of changes waiting to be made
+	 *
+	 * @return the amount of changes in the changed blocks
+	 */
+	public int getChangeCount() {
+		ChangedBlocks cb = changedBlocks;
+		return (cb == null) ? 0 : cb.size();
+	}
+
+	/**
+	 * gets the share of the block changer's changes the fluid gets, a fluid with
+	 * a weight of 2 gets twice the changes made as one with 1 when both are busy
+	 *
+	 * @return the weight of the fluid
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * gets the numbers kept about the fluid for the stats
+	 *
+	 * @return the fluid's metrics
+	 */
+	public FluidMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * gets the state of each block, add the fields in the fluid's constructor and
+	 * get and set them in flow() by the packed key of the block
+	 *
+	 * @return the state of the fluid's blocks
+	 */
+	protected FluidState getState() {
+		return state;
+	}
+
+	/**
+	 * gets the amount of flows that were dropped because the block was already waiting to flow
+	 *
+	 * @return the amount of duplicate flows dropped
+	 */
+	public long getDuplicateFlowCount() {
+		return flows.getDuplicates();
+	}
+
+	/**
+	 * replaces the flow queue, moving any flows already queued, only used before the fluid starts
+	 *
+	 * @param queue the new flow queue
+	 */
+	private void setFlowQueue(FlowQueue queue) {
+		FluidBlock temp;
+		while((temp = flows.poll()) != null)
+			queue.add(temp);
+		flows = queue;
 	}
 
 	/**
@@ -169,16 +756,58 @@ public abstract class Fluid extends JavaPlugin implements Runnable {
 	 * @param type the new type you want it changed to
 	 */
 	public void setType(FluidBlock fb, Material type) {
+		Journal j = journal;
+		RegionActivity a = activity;
+
 		//set newType in the fluid block
 		fb.newType = type;
 
-		//lock the changed blocks
-		synchronized(changedBlocks) {
-			//add this changed block to the changed block list
-			changedBlocks.add(fb);
+		//add this changed block to the changed block list, this does not lock
+		changedBlocks.add(fb, type);
+		if(j != null)
+			j.change(fb.key, type.getId());
+
+		//the region is still changing
+		if(a != null) {
+			a.changed(fb.key);
+			++flowing.get()[1];
+		}
+	}
+
+	/**
+	 * sets a block to a new type by its packed key, a fluid block is only made for
+	 * the block if it isn't waiting to be changed by this fluid already
+	 *
+	 * @param key the packed key of the block
+	 * @param type the new type you want it changed to
+	 */
+	protected void setType(long key, Material type) {
+		Journal j = journal;
+		RegionActivity a = activity;
+
+		changedBlocks.add(key, type);
+		if(j != null)
+			j.change(key, type.getId());
+
+		//the region is still changing
+		if(a != null) {
+			a.changed(key);
+			++flowing.get()[1];
 		}
 	}
 
+	/**
+	 * notes that the block changer made a change, so the journal doesn't replay it
+	 *
+	 * @param key the packed key of the block
+	 * @param typeId the id of the material the block was changed to
+	 */
+	void applied(long key, int typeId) {
+		Journal j = journal;
+		if(j != null)
+			j.applied(key, typeId);
+	}
+
 	/**
 	 * gets the material type of a fluid block
 	 *
@@ -187,50 +816,177 @@ public abstract class Fluid extends JavaPlugin implements Runnable {
 	 * @return the type the fluid block points to
 	 */
 	public Material getType(FluidBlock fb) {
-		Material ret = null;
-		ChangedBlocks temp = null;
-
-		//loop through all of the materials to get a type, first one
-		//that returns a type wins
-		for(Fluid f : allChanges.keySet()) {
-			temp = allChanges.get(f);
-			synchronized(temp) {
-				ret = temp.getType(fb);
-			}
-			if(ret != null)
-				break;
-		}
+		return getType(fb.key);
+	}
 
-		//if there was no type from the changed blocks, grab the server type
-		if(ret == null)
-			ret = fb.loc.getBlock().getType();
+	/**
+	 * gets the material type of a block from its packed key, for looking at the
+	 * blocks a Neighbourhood finds without creating fluid blocks for them
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the type the block points to
+	 */
+	public Material getType(long key) {
+		return ChangedBlocks.getMaterial(getTypeId(key));
+	}
 
-		//return the type
+	/**
+	 * gets the copy of a chunk's types, if the chunk isn't loaded the flow waits for
+	 * it like it does when getTypeId reads it
+	 *
+	 * @param chunkKey the packed key of the chunk
+	 *
+	 * @return the copy of the chunk, null if the chunk isn't loaded
+	 */
+	ChunkTypes getChunkTypes(long chunkKey) {
+		ChunkCache cache = chunkCache;
+		ChunkTypes ret = (cache == null) ? null : cache.getChunk(chunkKey);
+
+		if(ret == null)
+			flowing.get()[0] = chunkKey;
 		return ret;
 	}
 
 	/**
-	 * sleeps the fluid for an amount of time in nano-seconds
-	 * CAUTION: do not use in main server thread EVER!
+	 * gets the type id of a block from its packed key, the same type getType gives
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the type id the block points to
+	 */
+	public int getTypeId(long key) {
+		//all of the fluids' changes are in one index, the last change to the block wins
+		int id = ChangedBlocks.getPendingTypeId(key);
+
+		//if there was no type from the changed blocks, grab the type from the copy of the chunk, never the world
+		if(id == LongIntMap.NO_VALUE) {
+			ChunkCache cache = chunkCache;
+			id = (cache == null) ? ChunkCache.UNLOADED : cache.getTypeId(key);
+		}
+
+		//the chunk isn't loaded, the flow waits for it
+		if(id == ChunkCache.UNLOADED) {
+			flowing.get()[0] = BlockKey.getChunkKey(key);
+			return UNLOADED_TYPE;
+		}
+		return id;
+	}
+
+	/**
+	 * starts running the fluid's flows on an executor
 	 *
-	 * @param time the amount of time in nano-seconds to sleep for
+	 * @param e the executor to run the flows on
 	 */
-	private void sleep(int time) {
-		try{Thread.sleep(0,time);}catch(Exception e){}
+	private void start(Executor e) {
+		executor = e;
+		running = true;
+		schedule();
 	}
 
-	/** starts the asynchronous thread the fluid uses to run */
-	private void start() {
-		(new Thread(this)).start();
+	/** tells the fluid to stop without waiting for it, batches still on the executor finish right away */
+	void halt() {
+		running = false;
 	}
 
-	/** stops the asynchronous thread the fluid uses to run */
+	/** stops the fluid, waiting for the batch it is running to finish */
 	public void stop() {
+		stop(0);
+	}
+
+	/**
+	 * stops the fluid, waiting a limited time for the batch it is running to finish
+	 *
+	 * @param timeout the longest to wait in milli-seconds, 0 to wait until it finishes
+	 *
+	 * @return whether or not the fluid stopped in time
+	 */
+	public boolean stop(long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		long left = 0;
+
 		//set running to false to stop the fluid
 		running = false;
 
 		//wait for it to stop
-		while(!stopped) sleep(sleepTime);
+		synchronized(this) {
+			while(active.get() > 0) {
+				if(timeout > 0 && (left = end - System.currentTimeMillis()) <= 0)
+					return false;
+				try {
+					wait(left);
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * checks to see if the fluid has been told to stop and has no batches left running
+	 *
+	 * @return whether or not the fluid is stopped
+	 */
+	public boolean isStopped() {
+		return !running && active.get() == 0;
+	}
+
+	/**
+	 * saves the pending changes and flows to the journal and closes it, called once
+	 * the fluid is stopped so they are made after the next start instead of now
+	 *
+	 * @return whether or not everything pending was saved, false if there is no journal
+	 */
+	boolean closeJournal() {
+		Journal j = journal;
+		boolean ret;
+
+		journal = null;
+		ret = j != null && j.close();
+		closeSpill();
+		return ret;
+	}
+
+	/** deletes the flows on disk, they are in the journal if there is one */
+	private void closeSpill() {
+		FlowSpill s = spill;
+		if(s != null)
+			s.close();
+	}
+
+	/** throws away the journal, for when the fluid's pending changes are thrown away */
+	void deleteJournal() {
+		Journal j = journal;
+		journal = null;
+		if(j != null)
+			j.delete();
+		closeSpill();
+		parked.clear();
+	}
+
+	/**
+	 * gets the priority the fluid's changes are made in when the block changer is
+	 * ordering them by priority, by default the chunks closest to a player go first,
+	 * override to give the fluid its own order
+	 *
+	 * @param nearest the priority from the distance to the nearest online player
+	 *
+	 * @return the priority to order the fluid's chunks by
+	 */
+	public ChunkPriority getChunkPriority(ChunkPriority nearest) {
+		return nearest;
+	}
+
+	/**
+	 * gets the executor the fluid's flows run on, by default the one shared by
+	 * all fluids, override to give the fluid its own
+	 *
+	 * @return the executor to run the flows on
+	 */
+	protected Executor getExecutor() {
+		return plugin.getFlowExecutor();
 	}
 
 	/**
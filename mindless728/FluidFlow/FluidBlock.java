@@ -1,6 +1,5 @@
 package mindless728.FluidFlow;
 
-import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.Location;
 import org.bukkit.Material;
@@ -22,8 +21,14 @@ public class FluidBlock {
 	/** the new material type when changing the block */
 	public Material newType;
 
+	/** the packed key of the location, calculated when the block is created */
+	public final long key;
+
+	/** when the block was put in the order of changed blocks, from System.nanoTime */
+	long queued;
+
 	/** the hash code of the block, calculated when the block is created */
-	private Integer hash;
+	private final int hash;
 
 	/**
 	 * Constructor taking the location of the block
@@ -44,12 +49,27 @@ public class FluidBlock {
 		loc = l;
 		data = bd;
 
-		//calculate the hash code
-		hash = new Integer((loc.getBlockY() & 0xFF) | ((loc.getBlockX() & 0xFFF) << 8) | ((loc.getBlockZ() & 0xFFF) << 20));;
+		//pack the location and calculate the hash code from it
+		key = BlockKey.pack(loc);
+		hash = BlockKey.hash(key);
 	}
 
 	/**
-	 * gets the adjacent blocks based on an array of block faces to use
+	 * Constructor taking the packed key of the block, for blocks found through a Neighbourhood
+	 *
+	 * @param k the packed key of the block
+	 */
+	public FluidBlock(long k) {
+		key = k;
+		hash = BlockKey.hash(key);
+		loc = BlockKey.toLocation(key);
+	}
+
+	/**
+	 * gets the adjacent blocks based on an array of block faces to use, the blocks
+	 * are found from the packed key without going through the world
+	 *
+	 * a Neighbourhood does the same without creating the list or the blocks
 	 *
 	 * @param faces the block faces to use for getting the adjacent blocks
 	 *
@@ -57,19 +77,12 @@ public class FluidBlock {
 	 */
 	public LinkedList<FluidBlock> getBlockFaces(BlockFace[] faces) {
 		LinkedList<FluidBlock> ret = new LinkedList<FluidBlock>();
-		Block temp = null;
-
-		//loop through the block faces
-		for(BlockFace bf : faces) {
-			//get the block described by the face
-			try {
-				temp = loc.getBlock().getRelative(bf);
-			} catch (NullPointerException npe) {}
-
-			//add the fluidblock by location
-			if(temp != null)
-				ret.add(new FluidBlock(temp.getLocation()));
-		}
+		int y = BlockKey.getY(key);
+
+		//loop through the block faces, skipping the ones outside of the world
+		for(BlockFace bf : faces)
+			if(BlockKey.isInWorld(y + bf.getModY()))
+				ret.add(new FluidBlock(BlockKey.relative(key, bf.getModX(), bf.getModY(), bf.getModZ())));
 		return ret;
 	}
 
@@ -81,7 +94,7 @@ public class FluidBlock {
 	public int hashCode() {
 		if(loc == null)
 			return 0;
-		return hash.intValue();
+		return hash;
 	}
 
 	/**
@@ -103,10 +116,7 @@ public class FluidBlock {
 		if(fb == null || fb.loc == null)
 			return false;
 		
-		//equal when the locations describe the same point
-		return loc.getWorld() == fb.loc.getWorld() &&
-			   loc.getBlockX() == fb.loc.getBlockX() &&
-			   loc.getBlockY() == fb.loc.getBlockY() &&
-			   loc.getBlockZ() == fb.loc.getBlockZ();
+		//equal when the locations describe the same point, the key holds the world and the point
+		return key == fb.key;
 	}
 }
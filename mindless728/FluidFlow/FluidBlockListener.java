@@ -1,18 +1,21 @@
 package mindless728.FluidFlow;
 
+import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockFromToEvent;
 import org.bukkit.event.block.BlockListener;
 import org.bukkit.event.block.BlockPhysicsEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
-import org.bukkit.Material;
-
-import java.util.LinkedList;
+import org.bukkit.World;
 
 /**
  * catches block based events
  *
+ * the events only look at the type ids of the blocks and find the fluid with one
+ * array read, the neighbours are found from the packed key and a fluid block is
+ * only created for a block that a fluid has to flow
+ *
  * @author mindless728
  */
 public class FluidBlockListener extends BlockListener {
@@ -20,7 +23,10 @@ public class FluidBlockListener extends BlockListener {
 	private FluidFlow plugin;
 
 	/** the block faces for adjacent blocks */
-	private BlockFace[] adjacentBlocks = {BlockFace.UP, BlockFace.DOWN, BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.WEST};
+	private Neighbourhood adjacentBlocks = new Neighbourhood(new BlockFace[] {BlockFace.UP, BlockFace.DOWN, BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST, BlockFace.WEST});
+
+	/** the packed keys of the adjacent blocks, only used on the server thread */
+	private long[] adjacent = new long[adjacentBlocks.size()];
 
 	/**
 	 * Constructor taking the FluidFlow plugin as a parameter
@@ -34,13 +40,47 @@ public class FluidBlockListener extends BlockListener {
 	/**
 	 * adds a flow to the correct fluid (if one exists)
 	 *
-	 * @param fb the fluid flow to add
+	 * @param world the world the block is in
+	 * @param key the packed key of the block
 	 */
-	private void addFluidFlow(FluidBlock fb) {
-		Fluid fluid = plugin.getFluidFromMaterial(fb.loc.getBlock().getType());
+	private void addFluidFlow(World world, long key) {
+		Fluid fluid = plugin.getFluidFromId(world.getBlockTypeIdAt(BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key)));
 		if(fluid == null)
 			return;
-		fluid.addFlow(fb);
+		fluid.addFlow(new FluidBlock(key));
+	}
+
+	/**
+	 * adds flows for the adjacent blocks that are fluids
+	 *
+	 * @param world the world the block is in
+	 * @param key the packed key of the block
+	 */
+	private void addAdjacentFlows(World world, long key) {
+		int count = adjacentBlocks.fill(key, adjacent);
+		for(int i = 0; i < count; ++i)
+			addFluidFlow(world, adjacent[i]);
+	}
+
+	/**
+	 * wakes the fluids' sleeping regions around a block a player changed
+	 *
+	 * @param key the packed key of the block that changed
+	 */
+	private void wake(long key) {
+		for(Fluid f : plugin.getFluidArray())
+			f.wake(key);
+	}
+
+	/**
+	 * throws out the fluids' copy of the chunk a block is in, called when a player changes the block
+	 *
+	 * @param key the packed key of the block that changed
+	 */
+	private void invalidate(long key) {
+		ChunkCache cache = plugin.getChunkCache();
+		if(cache != null)
+			cache.invalidate(BlockKey.getChunkKey(key));
 	}
 
 	/**
@@ -51,12 +91,12 @@ public class FluidBlockListener extends BlockListener {
 	 */
 	@Override
 	public void onBlockBreak(BlockBreakEvent event) {
-		FluidBlock fb = new FluidBlock(event.getBlock().getLocation());
-		LinkedList<FluidBlock> adjFb = fb.getBlockFaces(adjacentBlocks);
+		Block block = event.getBlock();
+		long key = BlockKey.pack(block);
 
-		for(FluidBlock f : adjFb) {
-			addFluidFlow(f);
-		}
+		invalidate(key);
+		wake(key);
+		addAdjacentFlows(block.getWorld(), key);
 	}
 
 	/**
@@ -65,15 +105,8 @@ public class FluidBlockListener extends BlockListener {
 	 */
 	@Override
 	public void onBlockPhysics(BlockPhysicsEvent event) {
-		Material type = event.getBlock().getType();
-
-		//change the stationary types to normal types, i consider them the same
-		if(type == Material.STATIONARY_WATER)
-			type = Material.WATER;
-		else if(type == Material.STATIONARY_LAVA)
-			type = Material.LAVA;
-
-		if(plugin.isMaterialRegistered(type))
+		//the stationary types point to the same fluid as the normal types
+		if(plugin.getFluidFromId(event.getBlock().getTypeId()) != null)
 			event.setCancelled(true);
 	}
 
@@ -86,13 +119,13 @@ public class FluidBlockListener extends BlockListener {
 	 */
 	@Override
 	public void onBlockPlace(BlockPlaceEvent event) {
-		FluidBlock fb = new FluidBlock(event.getBlock().getLocation());
-		LinkedList<FluidBlock> adjFb = fb.getBlockFaces(adjacentBlocks);
+		Block block = event.getBlock();
+		long key = BlockKey.pack(block);
 
-		addFluidFlow(fb);
-		for(FluidBlock f : adjFb) {
-			addFluidFlow(f);
-		}
+		invalidate(key);
+		wake(key);
+		addFluidFlow(block.getWorld(), key);
+		addAdjacentFlows(block.getWorld(), key);
 	}
 
 	/**
@@ -103,15 +136,8 @@ public class FluidBlockListener extends BlockListener {
 	 */
 	@Override
 	public void onBlockFromTo(BlockFromToEvent event) {
-		Material type = event.getBlock().getType();
-
-		//change the stationary types to normal types, i consider them the same
-		if(type == Material.STATIONARY_WATER)
-			type = Material.WATER;
-		else if(type == Material.STATIONARY_LAVA)
-			type = Material.LAVA;
-
-		if(plugin.isMaterialRegistered(type))
+		//the stationary types point to the same fluid as the normal types
+		if(plugin.getFluidFromId(event.getBlock().getTypeId()) != null)
 			event.setCancelled(true);
 	}
 }
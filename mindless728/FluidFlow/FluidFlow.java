@@ -7,8 +7,11 @@ import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.util.config.Configuration;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.LinkedList;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * the main plugin that controls registration of fluid types
@@ -16,34 +19,58 @@ import java.util.LinkedList;
  * @author mindless728
  */
 public class FluidFlow extends JavaPlugin {
+	/** the domain the JMX beans are registered under */
+	private static final String MBEAN_DOMAIN = "mindless728.FluidFlow";
+
 	/** the mapping from registered materials to their fluid */
 	private HashMap<Material, Fluid> registeredM;
 
 	/** the mapping from registered fluids to their material */
 	private HashMap<Fluid, Material> registeredF;
 
+	/** the registered fluids indexed by the id of their material, the stationary ids point to the same fluid, replaced whole on a change */
+	private volatile Fluid[] fluidIds;
+
+	/** the registered fluids, replaced whole on a change so it can be read without a copy */
+	private volatile Fluid[] fluidArray;
+
 	/** the mapping from fluid to its changed block object */
 	private HashMap<Fluid, ChangedBlocks> changedBlocks;
 
 	/** the block listener for this plugin */
 	private FluidBlockListener blockListener;
 
+	/** the world listener for this plugin */
+	private FluidWorldListener worldListener;
+
 	/** the object that changes the blocks from the async threads */
 	private BlockChanger blockChanger;
 
 	/** the configruation file object */
 	private Configuration config;
 
+	/** the threads that the fluids run their flows on */
+	private FlowExecutor flowExecutor;
+
+	/** the copies of the chunks the fluids read block types from */
+	private ChunkCache chunkCache;
+
+	/** the longest to wait for the fluids to stop on shutdown in milli-seconds */
+	private long stopTimeout = 5000;
+
+	/** the longest to spend making changes on shutdown without a journal in milli-seconds, 0 for no limit */
+	private long drainTime = 0;
+
 	/** Default Constructor */
 	public FluidFlow() {
 		//basically allocate all of the objects needed
 		registeredM = new HashMap<Material, Fluid>();
 		registeredF = new HashMap<Fluid, Material>();
 		changedBlocks = new HashMap<Fluid, ChangedBlocks>();
+		fluidIds = new Fluid[ChangedBlocks.getMaterialIdLimit()];
+		fluidArray = new Fluid[0];
 		blockListener = new FluidBlockListener(this);
-
-		//set the structure all fluids can see for changed blocks
-		Fluid.setAllChanges(changedBlocks);
+		worldListener = new FluidWorldListener(this);
 	}
 
 	/**	called when the plugin is enabled */
@@ -54,16 +81,35 @@ public class FluidFlow extends JavaPlugin {
 		config = new Configuration(new File(getDataFolder().getPath()+File.separator+getDescription().getName()+".yml"));
 		config.load();
 
+		//setup the copies of the chunks for the fluids to read from
+		chunkCache = new ChunkCache(config.getInt("ChunkCache.waitTime", 250), config.getInt("ChunkCache.maxAge", 100));
+
+		//how long shutdown can take
+		stopTimeout = config.getInt("Shutdown.stopTimeout", (int)stopTimeout);
+		drainTime = config.getInt("Shutdown.drainTime", (int)drainTime);
+		config.save();
+		Fluid.setChunkCache(chunkCache);
+
 		//schedule the block changer
 		blockChanger = new BlockChanger(changedBlocks, this);
 		getServer().getScheduler().scheduleSyncRepeatingTask(this, blockChanger, 1, 1);
 
+		//show the stats over JMX and through /fluidflow stats
+		registerMBean("type=BlockChanger", blockChanger);
+		for(Fluid f : registeredF.keySet())
+			registerMBean(fluidMBeanName(f), f.getMetrics());
+		getCommand("fluidflow").setExecutor(new FluidFlowCommand(this));
+
 		//register the block based events
 		getServer().getPluginManager().registerEvent(Type.BLOCK_BREAK, blockListener, Priority.Low, this);
 		getServer().getPluginManager().registerEvent(Type.BLOCK_PHYSICS, blockListener, Priority.Low, this);
 		getServer().getPluginManager().registerEvent(Type.BLOCK_PLACE, blockListener, Priority.Low, this);
     	getServer().getPluginManager().registerEvent(Type.BLOCK_FROMTO, blockListener, Priority.Low, this);
 
+		//register the chunk based events, only watching so they come after anything that cancels an unload
+		getServer().getPluginManager().registerEvent(Type.CHUNK_LOAD, worldListener, Priority.Monitor, this);
+		getServer().getPluginManager().registerEvent(Type.CHUNK_UNLOAD, worldListener, Priority.Monitor, this);
+
 		//tell the operator that the plugin has been enabled fully
 		System.out.println(getDescription().getName()+" version "+getDescription().getVersion()+" enabled");
 	}
@@ -71,7 +117,7 @@ public class FluidFlow extends JavaPlugin {
 	/** called when the plugin is disabled */
 	public void onDisable() {
 		ChangedBlocks temp = null;
-		FluidBlock block = null;
+		long end;
 
 		//stop all associated tasks with this plugin
 		getServer().getScheduler().cancelTasks(this);
@@ -79,24 +125,62 @@ public class FluidFlow extends JavaPlugin {
 		//tell the operator that the plugin is shutting down
 		System.out.println("Shutting down "+getDescription().getName()+", this may take a long time");
 
+		//tell all of the fluids to stop at once
+		for(Fluid f : changedBlocks.keySet())
+			f.halt();
+
+		//the chunks won't be copied anymore, the flows still running read them as unloaded and are parked
+		if(chunkCache != null)
+			chunkCache.close();
+
+		//give the fluids one timeout between them to finish their batches
+		end = System.currentTimeMillis() + stopTimeout;
+		for(Fluid f : changedBlocks.keySet())
+			if(!f.stop(Math.max(1, end - System.currentTimeMillis())))
+				System.out.println("**** WARNING! "+f.getMaterial()+" did not stop within "+stopTimeout+"ms, its pending changes are saved without it ****");
+		if(chunkCache != null)
+			Fluid.setChunkCache(null);
+
 		//loop through the fluids
 		for(Fluid f : changedBlocks.keySet()) {
-			f.stop(); //stop the fluid thread
 			temp = changedBlocks.get(f); //get the changed blocks from the fluid
 
+			//save the changes and flows to be made after the next start if the fluid keeps a journal
+			if(f.closeJournal()) {
+				System.out.println("Stopping "+f.getMaterial()+": "+temp.size()+" fluid changes and "+f.getFlowCount()+" flows saved to the journal");
+
+				//take them out of the index all fluids read from, they come back from the journal
+				temp.clear();
+				continue;
+			}
+
 			//tell the operator that the fluid needs to save the amount of blocks to the server still
 			System.out.print("Stopping "+f.getMaterial()+": "+temp.size()+" fluid changes to save");
 
-			//while the fluid has changed blocks, change them
-			while(!temp.isEmpty()) {
-				block = temp.remove();
-				block.loc.getBlock().setType(block.newType);
+			//while the fluid has changed blocks and there is time left, change them a chunk at a time
+			blockChanger.drain(temp, (drainTime <= 0) ? 0 : System.currentTimeMillis() + drainTime);
+			if(!temp.isEmpty()) {
+				System.out.println("**** WARNING! "+f.getMaterial()+": "+temp.size()+" fluid changes were not made within "+drainTime+"ms, turn on Journal.enabled to keep them ****");
+				temp.clear();
 			}
 		}
 
+		//stop the threads the fluids were running on
+		if(flowExecutor != null) {
+			flowExecutor.shutdown();
+			flowExecutor = null;
+		}
+
+		//take the stats off of JMX
+		unregisterMBean("type=BlockChanger");
+		for(Fluid f : registeredF.keySet())
+			unregisterMBean(fluidMBeanName(f));
+		blockChanger = null;
+
 		//clear the registration nodes
 		registeredM.clear();
 		registeredF.clear();
+		updateFluidIds();
 
 		//tell the operator that the plugin is shutdown
 		System.out.println(getDescription().getName()+" version "+getDescription().getVersion()+" disabled");
@@ -127,16 +211,22 @@ public class FluidFlow extends JavaPlugin {
 		//register the fluid and type
 		registeredM.put(type, fluid);
 		registeredF.put(fluid, type);
+		updateFluidIds();
 
 		//setup the changed blocks in the mapping
 		changedBlocks.put(fluid, temp);
 
+		//show the fluid's stats, fluids enabled before FluidFlow are shown when it is enabled
+		if(blockChanger != null)
+			registerMBean(fluidMBeanName(fluid), fluid.getMetrics());
+
 		//give the fluid the changed blocks object
 		return temp;
 	}
 
 	/**
-	 * unregisters the fluid, warning once a fluid is stopped in fashion, it cannot be restarted
+	 * unregisters the fluid, warning once a fluid is stopped in fashion, it cannot be restarted,
+	 * this doesn't wait for the fluid, its remaining changes are made over the next ticks
 	 *
 	 * @param fluid the fluid to remove registration from
 	 */
@@ -146,11 +236,24 @@ public class FluidFlow extends JavaPlugin {
 		if(m == null)
 			return;
 
-		//stop the fluid and remove all registration from it
-		fluid.stop();
+		//tell the fluid to stop without waiting for it and remove all registration from it
+		fluid.halt();
+		unregisterMBean(fluidMBeanName(fluid));
 		registeredM.remove(m);
 		registeredF.remove(fluid);
-		changedBlocks.remove(fluid);
+		updateFluidIds();
+
+		//the block changer makes the rest of its changes over the next ticks and drops it once it has stopped
+		if(blockChanger != null) {
+			blockChanger.retire(fluid);
+			return;
+		}
+
+		//there is no block changer, its changes are never made, take them out of the index all fluids read from
+		fluid.stop(stopTimeout);
+		fluid.deleteJournal();
+		fluid.getState().clear();
+		changedBlocks.remove(fluid).clear();
 	}
 
 	/**
@@ -172,11 +275,7 @@ public class FluidFlow extends JavaPlugin {
 	 * @return whether or not the material is registered
 	 */
 	public boolean isMaterialRegistered(Material type) {
-		if(type == Material.STATIONARY_WATER)
-			type = Material.WATER;
-		else if(type == Material.STATIONARY_LAVA)
-			type = Material.LAVA;
-		return registeredM.containsKey(type);
+		return type != null && getFluidFromId(type.getId()) != null;
 	}
 
 	/**
@@ -198,11 +297,134 @@ public class FluidFlow extends JavaPlugin {
 	 * @return the fluid that is registered with the known material, null if it isn't registered
 	 */
 	public Fluid getFluidFromMaterial(Material type) {
-		if(type == Material.STATIONARY_WATER)
-			type = Material.WATER;
-		else if(type == Material.STATIONARY_LAVA)
-			type = Material.LAVA;
-		return registeredM.get(type);
+		return (type == null) ? null : getFluidFromId(type.getId());
+	}
+
+	/**
+	 * gets the fluid that is associated with a material id, with a single array
+	 * read so the block events can check every block they see
+	 *
+	 * @param id the id of the material
+	 *
+	 * @return the fluid that is registered with the material, null if it isn't registered
+	 */
+	public Fluid getFluidFromId(int id) {
+		Fluid[] temp = fluidIds;
+		if(id < 0 || id >= temp.length)
+			return null;
+		return temp[id];
+	}
+
+	/** rebuilds the fluids indexed by material id and the array of fluids after a fluid is registered or deregistered */
+	private void updateFluidIds() {
+		Fluid[] temp = new Fluid[ChangedBlocks.getMaterialIdLimit()];
+
+		//the stationary types are the same as the normal types
+		for(Material m : registeredM.keySet()) {
+			temp[m.getId()] = registeredM.get(m);
+			if(m == Material.WATER)
+				temp[Material.STATIONARY_WATER.getId()] = registeredM.get(m);
+			else if(m == Material.LAVA)
+				temp[Material.STATIONARY_LAVA.getId()] = registeredM.get(m);
+		}
+		fluidIds = temp;
+		fluidArray = registeredF.keySet().toArray(new Fluid[registeredF.size()]);
+	}
+
+	/**
+	 * gets the registered fluids
+	 *
+	 * @return a copy of the list of registered fluids
+	 */
+	public LinkedList<Fluid> getFluids() {
+		return new LinkedList<Fluid>(registeredF.keySet());
+	}
+
+	/**
+	 * gets the registered fluids without copying them, for the listeners that
+	 * run on every block event
+	 *
+	 * @return the registered fluids, the array is shared and must not be changed
+	 */
+	public Fluid[] getFluidArray() {
+		return fluidArray;
+	}
+
+	/**
+	 * gets the block changer that makes the fluids' changes
+	 *
+	 * @return the block changer, null if the plugin isn't enabled
+	 */
+	public BlockChanger getBlockChanger() {
+		return blockChanger;
+	}
+
+	/**
+	 * gets the threads shared by the fluids to run their flows on, they are
+	 * started the first time this is called
+	 *
+	 * @return the shared flow executor
+	 */
+	public synchronized FlowExecutor getFlowExecutor() {
+		if(flowExecutor == null) {
+			int threads = 0;
+			if(config != null) {
+				threads = config.getInt("FlowExecutor.threads", threads);
+				config.save();
+			}
+			flowExecutor = new FlowExecutor(threads);
+		}
+		return flowExecutor;
+	}
+
+	/**
+	 * gets the copies of the chunks the fluids read block types from
+	 *
+	 * @return the chunk cache, null if the plugin isn't enabled
+	 */
+	public ChunkCache getChunkCache() {
+		return chunkCache;
+	}
+
+	/**
+	 * gets the name of the JMX bean of a fluid's stats
+	 *
+	 * @param fluid the fluid
+	 *
+	 * @return the name of the bean in the plugin's domain
+	 */
+	private String fluidMBeanName(Fluid fluid) {
+		return "type=Fluid,name="+getMaterialFromFluid(fluid);
+	}
+
+	/**
+	 * shows a bean over JMX, the stats are only informational so failing just tells the operator
+	 *
+	 * @param name the name of the bean in the plugin's domain
+	 * @param bean the bean
+	 */
+	private void registerMBean(String name, Object bean) {
+		try {
+			ObjectName on = new ObjectName(MBEAN_DOMAIN+":"+name);
+			if(ManagementFactory.getPlatformMBeanServer().isRegistered(on))
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, on);
+		} catch(JMException jme) {
+			System.out.println("**** WARNING! "+getDescription().getName()+": could not register "+name+" with JMX: "+jme.getMessage()+" ****");
+		}
+	}
+
+	/**
+	 * takes a bean off of JMX
+	 *
+	 * @param name the name of the bean in the plugin's domain
+	 */
+	private void unregisterMBean(String name) {
+		try {
+			ObjectName on = new ObjectName(MBEAN_DOMAIN+":"+name);
+			if(ManagementFactory.getPlatformMBeanServer().isRegistered(on))
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+		} catch(JMException jme) {}
 	}
 
 	/**
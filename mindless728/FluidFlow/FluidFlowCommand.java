@@ -0,0 +1,86 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+/**
+ * handles the /fluidflow command, /fluidflow stats shows the block changer's cost
+ * and each fluid's queues, rates, active and sleeping regions, whether it is held
+ * back for being over its limits and how long its changes wait to be made, adding
+ * reset forgets the waits recorded so far
+ *
+ * @author mindless728
+ */
+public class FluidFlowCommand implements CommandExecutor {
+	/** the FluidFlow plugin */
+	private FluidFlow plugin;
+
+	/**
+	 * Constructor taking the FluidFlow plugin
+	 *
+	 * @param p the FluidFlow plugin
+	 */
+	public FluidFlowCommand(FluidFlow p) {
+		plugin = p;
+	}
+
+	/**
+	 * called when someone runs the command
+	 *
+	 * @param sender who ran the command
+	 * @param command the command
+	 * @param label the name the command was run as
+	 * @param args the arguments of the command
+	 *
+	 * @return whether or not the command was used right
+	 */
+	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+		BlockChanger changer = plugin.getBlockChanger();
+		FluidMetrics m;
+
+		if(args.length < 1 || !args[0].equalsIgnoreCase("stats"))
+			return false;
+
+		if(!sender.isOp()) {
+			sender.sendMessage("only ops can see the FluidFlow stats");
+			return true;
+		}
+
+		if(changer == null) {
+			sender.sendMessage("FluidFlow is not running");
+			return true;
+		}
+
+		//reset the latencies if asked to
+		if(args.length > 1 && args[1].equalsIgnoreCase("reset")) {
+			for(Fluid f : plugin.getFluids())
+				f.getMetrics().resetLatency();
+			sender.sendMessage("FluidFlow latencies reset");
+			return true;
+		}
+
+		sender.sendMessage(String.format("FluidFlow: %.1f tps, block changer %.2fms/tick avg of %.2fms budget, %d changes last tick, %d waiting",
+										 changer.getTps(), changer.getAverageRunTime() / 1000000.0, changer.getRunTimeBudget() / 1000000.0,
+										 changer.getLastChangeCount(), changer.getBacklog()));
+		sender.sendMessage(String.format("  changes take %.1fus away from players, %.1fus near them, %.1fus more per chunk",
+										 changer.getAverageChangeCost() / 1000.0, changer.getAverageNearChangeCost() / 1000.0,
+										 changer.getAverageChunkCost() / 1000.0));
+
+		for(Fluid f : plugin.getFluids()) {
+			m = f.getMetrics();
+			sender.sendMessage(String.format("%s: %d flows queued, %d changes waiting, %.0f flows/s, %.1f changes/tick",
+											 m.getMaterial(), m.getFlowQueueDepth(), m.getChangeBacklog(),
+											 m.getFlowsPerSecond(), m.getChangesPerTick()));
+			sender.sendMessage(String.format("  %d regions active, %d asleep, %d flows slept, %d flows and %d chunks of changes waiting on chunk loads",
+											 m.getActiveRegions(), m.getSleepingRegions(), m.getSleptFlows(), m.getParkedFlows(), m.getParkedChunks()));
+			if(m.isThrottled() || m.getThrottleCount() > 0)
+				sender.sendMessage(String.format("  %s, throttled %d times, %d flows on disk, %d spilled, %d dropped",
+												 m.isThrottled() ? "throttled" : "not throttled", m.getThrottleCount(),
+												 m.getSpilledFlows(), m.getFlowsSpilled(), m.getFlowsDropped()));
+			sender.sendMessage(String.format("  change latency ms: p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+											 m.getLatencyP50(), m.getLatencyP99(), m.getLatencyP999(), m.getLatencyMax()));
+		}
+		return true;
+	}
+}
@@ -0,0 +1,220 @@
+package mindless728.FluidFlow;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * keeps the numbers of a fluid, the queue depths are read from the fluid when
+ * asked for, the fluid counts the flows it runs and the block changer counts the
+ * changes it makes and how long they waited
+ *
+ * the rates are worked out by the block changer about once a second
+ *
+ * @author mindless728
+ */
+public class FluidMetrics implements FluidMetricsMBean {
+	/** the nano-seconds in a second */
+	private static final long SECOND = 1000000000L;
+
+	/** the nano-seconds in a milli-second */
+	private static final double MILLI = 1000000.0;
+
+	/** the fluid the numbers are for */
+	private Fluid fluid;
+
+	/** the amount of flows run, added to by the fluid threads */
+	private AtomicLong flowsRun;
+
+	/** the amount of changes made, only written by the server thread */
+	private volatile long changesApplied;
+
+	/** the time from a change being queued to it being made */
+	private LatencyHistogram latency;
+
+	/** a reset of the latencies asked for from another thread, done by the server thread */
+	private volatile boolean resetLatency;
+
+	/** when the rates were last worked out, 0 before the first */
+	private long lastSample;
+
+	/** the amount of flows run when the rates were last worked out */
+	private long lastFlows;
+
+	/** the amount of changes made when the rates were last worked out */
+	private long lastChanges;
+
+	/** the amount of server ticks since the rates were last worked out */
+	private int ticks;
+
+	/** the flows run per second */
+	private volatile double flowsPerSecond;
+
+	/** the changes made per server tick */
+	private volatile double changesPerTick;
+
+	/**
+	 * Constructor taking the fluid the numbers are for
+	 *
+	 * @param f the fluid
+	 */
+	public FluidMetrics(Fluid f) {
+		fluid = f;
+		flowsRun = new AtomicLong();
+		latency = new LatencyHistogram();
+	}
+
+	/**
+	 * counts flows that were run, called once per batch
+	 *
+	 * @param count the amount of flows run
+	 */
+	void flowsRun(int count) {
+		if(count > 0)
+			flowsRun.addAndGet(count);
+	}
+
+	/**
+	 * counts a change that was made, only called by the server thread
+	 *
+	 * @param waited the time from the change being queued to it being made in nano-seconds
+	 */
+	void changeApplied(long waited) {
+		latency.record(waited);
+		++changesApplied;
+	}
+
+	/**
+	 * called by the server thread every tick to work out the rates about once a second
+	 *
+	 * @param now the time from System.nanoTime
+	 */
+	void tick(long now) {
+		long elapsed, flows, changes;
+
+		if(resetLatency) {
+			resetLatency = false;
+			latency.reset();
+		}
+
+		++ticks;
+		if(lastSample == 0) {
+			lastSample = now;
+			lastFlows = flowsRun.get();
+			lastChanges = changesApplied;
+			ticks = 0;
+			return;
+		}
+
+		elapsed = now - lastSample;
+		if(elapsed < SECOND)
+			return;
+
+		flows = flowsRun.get();
+		changes = changesApplied;
+		flowsPerSecond = (flows - lastFlows) * (double)SECOND / elapsed;
+		changesPerTick = (changes - lastChanges) / (double)ticks;
+
+		lastSample = now;
+		lastFlows = flows;
+		lastChanges = changes;
+		ticks = 0;
+	}
+
+	public String getMaterial() {
+		return String.valueOf(fluid.getMaterial());
+	}
+
+	public int getFlowQueueDepth() {
+		return fluid.getFlowCount();
+	}
+
+	public int getChangeBacklog() {
+		return fluid.getChangeCount();
+	}
+
+	public long getDuplicateFlows() {
+		return fluid.getDuplicateFlowCount();
+	}
+
+	public boolean isThrottled() {
+		return fluid.isThrottled();
+	}
+
+	public long getThrottleCount() {
+		return fluid.getThrottleCount();
+	}
+
+	public int getSpilledFlows() {
+		return fluid.getSpillSize();
+	}
+
+	public long getFlowsSpilled() {
+		return fluid.getSpilledFlowCount();
+	}
+
+	public long getFlowsDropped() {
+		return fluid.getDroppedFlowCount();
+	}
+
+	public int getActiveRegions() {
+		RegionActivity a = fluid.getActivity();
+		return (a == null) ? 0 : a.getActiveCount();
+	}
+
+	public int getSleepingRegions() {
+		RegionActivity a = fluid.getActivity();
+		return (a == null) ? 0 : a.getSleepingCount();
+	}
+
+	public long getSleptFlows() {
+		RegionActivity a = fluid.getActivity();
+		return (a == null) ? 0 : a.getSleptFlows();
+	}
+
+	public int getParkedFlows() {
+		return fluid.getParkedFlows().size();
+	}
+
+	public int getParkedChunks() {
+		return fluid.getParkedChunkCount();
+	}
+
+	public long getStateMemory() {
+		return fluid.getState().getMemory();
+	}
+
+	public long getFlowsRun() {
+		return flowsRun.get();
+	}
+
+	public double getFlowsPerSecond() {
+		return flowsPerSecond;
+	}
+
+	public long getChangesApplied() {
+		return changesApplied;
+	}
+
+	public double getChangesPerTick() {
+		return changesPerTick;
+	}
+
+	public double getLatencyP50() {
+		return latency.getValueAtPercentile(50) / MILLI;
+	}
+
+	public double getLatencyP99() {
+		return latency.getValueAtPercentile(99) / MILLI;
+	}
+
+	public double getLatencyP999() {
+		return latency.getValueAtPercentile(99.9) / MILLI;
+	}
+
+	public double getLatencyMax() {
+		return latency.getMax() / MILLI;
+	}
+
+	public void resetLatency() {
+		resetLatency = true;
+	}
+}
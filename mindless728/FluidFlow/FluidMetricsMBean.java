@@ -0,0 +1,80 @@
+package mindless728.FluidFlow;
+
+/**
+ * the numbers of a fluid shown over JMX
+ *
+ * @author mindless728
+ */
+public interface FluidMetricsMBean {
+	/** @return the material the fluid flows as */
+	public String getMaterial();
+
+	/** @return the amount of flows waiting to run */
+	public int getFlowQueueDepth();
+
+	/** @return the amount of changes waiting to be made */
+	public int getChangeBacklog();
+
+	/** @return the amount of flows dropped because the block was already waiting to flow */
+	public long getDuplicateFlows();
+
+	/** @return whether or not the fluid is throttled for being over its limits */
+	public boolean isThrottled();
+
+	/** @return the amount of times the fluid was throttled */
+	public long getThrottleCount();
+
+	/** @return the amount of flows kept on disk now */
+	public int getSpilledFlows();
+
+	/** @return the amount of flows written to disk since the fluid started */
+	public long getFlowsSpilled();
+
+	/** @return the amount of flows thrown away for being over the limit */
+	public long getFlowsDropped();
+
+	/** @return the amount of regions the fluid changed recently */
+	public int getActiveRegions();
+
+	/** @return the amount of regions asleep because the fluid stopped changing them */
+	public int getSleepingRegions();
+
+	/** @return the amount of flows thrown away because their region was asleep */
+	public long getSleptFlows();
+
+	/** @return the amount of flows waiting on chunks to load */
+	public int getParkedFlows();
+
+	/** @return the amount of chunks with changes waiting for them to load */
+	public int getParkedChunks();
+
+	/** @return the bytes used by the state of the fluid's blocks */
+	public long getStateMemory();
+
+	/** @return the amount of flows run since the fluid started */
+	public long getFlowsRun();
+
+	/** @return the amount of flows run per second over the last second */
+	public double getFlowsPerSecond();
+
+	/** @return the amount of changes made since the fluid started */
+	public long getChangesApplied();
+
+	/** @return the amount of changes made per server tick over the last second */
+	public double getChangesPerTick();
+
+	/** @return the median time from a change being queued to it being made in milli-seconds */
+	public double getLatencyP50();
+
+	/** @return the 99th percentile time from a change being queued to it being made in milli-seconds */
+	public double getLatencyP99();
+
+	/** @return the 99.9th percentile time from a change being queued to it being made in milli-seconds */
+	public double getLatencyP999();
+
+	/** @return the longest time from a change being queued to it being made in milli-seconds */
+	public double getLatencyMax();
+
+	/** forgets the recorded latencies, they are taken again from the next change made */
+	public void resetLatency();
+}
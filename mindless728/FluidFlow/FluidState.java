@@ -0,0 +1,313 @@
+package mindless728.FluidFlow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the per block state of a fluid (level, pressure, volume, ...) kept off the heap
+ * by the packed block key, so a fluid doesn't need an object for every block
+ *
+ * a fluid adds its fields before it sets any state, each chunk with state gets a
+ * direct buffer holding every field for every block in the chunk, a field's values
+ * are next to each other in the buffer indexed like ChunkTypes, (x << 11) | (z << 7) | y
+ *
+ * blocks in chunks that were never set read as 0, reads and writes don't lock so
+ * like getType a flow can see an old value for a block another thread is flowing
+ *
+ * @author mindless728
+ */
+public class FluidState {
+	/** a field holding a byte */
+	public static final int BYTE = 0;
+
+	/** a field holding a short */
+	public static final int SHORT = 1;
+
+	/** a field holding an int */
+	public static final int INT = 2;
+
+	/** a field holding a float */
+	public static final int FLOAT = 3;
+
+	/** the bytes in each type of field */
+	private static final int[] SIZES = {1, 2, 4, 4};
+
+	/** the amount of blocks in a chunk */
+	private static final int BLOCKS = 16 * 16 * ChunkTypes.HEIGHT;
+
+	/** the most cleared buffers kept to be used again */
+	private static final int POOL = 64;
+
+	/** the buffers of the chunks with state, by the packed chunk key */
+	private final LongObjectMap<ByteBuffer> chunks;
+
+	/** the buffers made for a chunk that another thread made one for first, used for the next chunk */
+	private final ConcurrentLinkedQueue<ByteBuffer> pool;
+
+	/** the amount of buffers in the pool */
+	private final AtomicInteger pooled;
+
+	/** the bytes each block takes for all of the fields */
+	private int stride;
+
+	/** the amount of fields */
+	private int fieldCount;
+
+	/** default constructor */
+	public FluidState() {
+		chunks = new LongObjectMap<ByteBuffer>();
+		pool = new ConcurrentLinkedQueue<ByteBuffer>();
+		pooled = new AtomicInteger();
+	}
+
+	/**
+	 * adds a field to every block, only before any state is set
+	 *
+	 * @param name the name of the field
+	 * @param type the type of the field, BYTE, SHORT, INT or FLOAT
+	 *
+	 * @return the field to get and set the values with
+	 */
+	public synchronized Field addField(String name, int type) {
+		Field ret;
+
+		if(type < BYTE || type > FLOAT)
+			throw new IllegalArgumentException("unknown field type "+type);
+		if(!chunks.isEmpty())
+			throw new IllegalStateException("field "+name+" added after state was set");
+
+		ret = new Field(name, type, stride * BLOCKS);
+		stride += SIZES[type];
+		++fieldCount;
+
+		//the pooled buffers are too small for the new field
+		pool.clear();
+		pooled.set(0);
+		return ret;
+	}
+
+	/**
+	 * gets the value of a byte, short or int field
+	 *
+	 * @param key the packed key of the block
+	 * @param field the field to get
+	 *
+	 * @return the value, 0 if it was never set
+	 */
+	public int getInt(long key, Field field) {
+		ByteBuffer buffer = chunks.get(BlockKey.getChunkKey(key));
+		int i;
+
+		if(buffer == null)
+			return 0;
+		i = index(key, field);
+		switch(field.type) {
+			case BYTE:
+				return buffer.get(i);
+			case SHORT:
+				return buffer.getShort(i);
+			case INT:
+				return buffer.getInt(i);
+			default:
+				return (int)buffer.getFloat(i);
+		}
+	}
+
+	/**
+	 * sets the value of a byte, short or int field, cut down to the field's size
+	 *
+	 * @param key the packed key of the block
+	 * @param field the field to set
+	 * @param value the value to set it to
+	 */
+	public void setInt(long key, Field field, int value) {
+		ByteBuffer buffer = getBuffer(key, value == 0);
+		int i;
+
+		if(buffer == null)
+			return;
+		i = index(key, field);
+		switch(field.type) {
+			case BYTE:
+				buffer.put(i, (byte)value);
+				break;
+			case SHORT:
+				buffer.putShort(i, (short)value);
+				break;
+			case INT:
+				buffer.putInt(i, value);
+				break;
+			default:
+				buffer.putFloat(i, value);
+		}
+	}
+
+	/**
+	 * gets the value of a float field
+	 *
+	 * @param key the packed key of the block
+	 * @param field the field to get
+	 *
+	 * @return the value, 0 if it was never set
+	 */
+	public float getFloat(long key, Field field) {
+		ByteBuffer buffer;
+
+		if(field.type != FLOAT)
+			return getInt(key, field);
+		buffer = chunks.get(BlockKey.getChunkKey(key));
+		return (buffer == null) ? 0 : buffer.getFloat(index(key, field));
+	}
+
+	/**
+	 * sets the value of a float field
+	 *
+	 * @param key the packed key of the block
+	 * @param field the field to set
+	 * @param value the value to set it to
+	 */
+	public void setFloat(long key, Field field, float value) {
+		ByteBuffer buffer;
+
+		if(field.type != FLOAT) {
+			setInt(key, field, (int)value);
+			return;
+		}
+		if((buffer = getBuffer(key, value == 0)) != null)
+			buffer.putFloat(index(key, field), value);
+	}
+
+	/**
+	 * checks to see if a chunk has any state
+	 *
+	 * @param chunkKey the packed key of the chunk, see BlockKey.getChunkKey
+	 *
+	 * @return whether or not any block in the chunk was set
+	 */
+	public boolean hasChunk(long chunkKey) {
+		return chunks.containsKey(chunkKey);
+	}
+
+	/**
+	 * throws away the state of a chunk, its blocks read as 0 again, the buffer
+	 * isn't pooled since a flow may still be writing to it
+	 *
+	 * @param chunkKey the packed key of the chunk, see BlockKey.getChunkKey
+	 */
+	public void clear(long chunkKey) {
+		chunks.remove(chunkKey);
+	}
+
+	/** throws away the state of every block */
+	public void clear() {
+		chunks.clear();
+		pool.clear();
+		pooled.set(0);
+	}
+
+	/**
+	 * gets the amount of chunks with state
+	 *
+	 * @return the amount of chunks
+	 */
+	public int getChunkCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * gets the memory used by the state, not counting the pool
+	 *
+	 * @return the bytes used
+	 */
+	public long getMemory() {
+		return (long)chunks.size() * stride * BLOCKS;
+	}
+
+	/**
+	 * gets the amount of fields each block has
+	 *
+	 * @return the amount of fields
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * gets the index of a block's value in its chunk's buffer
+	 *
+	 * @param key the packed key of the block
+	 * @param field the field of the value
+	 *
+	 * @return the byte index in the buffer
+	 */
+	private static int index(long key, Field field) {
+		int block = ((BlockKey.getX(key) & 0xF) << 11) | ((BlockKey.getZ(key) & 0xF) << 7) | BlockKey.getY(key);
+		return field.offset + block * SIZES[field.type];
+	}
+
+	/**
+	 * gets the buffer of the chunk a block is in, creating it if it has none
+	 *
+	 * @param key the packed key of the block
+	 * @param existing whether or not only an existing buffer is wanted, setting a block to 0 doesn't need one
+	 *
+	 * @return the buffer of the chunk, null if it has none and existing is set
+	 */
+	private ByteBuffer getBuffer(long key, boolean existing) {
+		long chunkKey = BlockKey.getChunkKey(key);
+		ByteBuffer ret = chunks.get(chunkKey), temp;
+
+		if(ret != null || existing)
+			return ret;
+
+		//use a pooled buffer if there is one, zeroed since it held another chunk
+		if((temp = pool.poll()) != null) {
+			pooled.decrementAndGet();
+			for(int i = 0; i < temp.capacity(); i += 8)
+				temp.putLong(i, 0);
+		} else {
+			if(stride == 0)
+				throw new IllegalStateException("no fields have been added");
+			temp = ByteBuffer.allocateDirect(stride * BLOCKS).order(ByteOrder.nativeOrder());
+		}
+
+		if((ret = chunks.putIfAbsent(chunkKey, temp)) == null)
+			ret = temp;
+		else
+			recycle(temp);
+		return ret;
+	}
+
+	/**
+	 * keeps a few buffers so a chunk that is set again doesn't need a new one, only
+	 * for buffers no other thread has seen
+	 *
+	 * @param buffer the buffer that is no longer used
+	 */
+	private void recycle(ByteBuffer buffer) {
+		if(pooled.incrementAndGet() <= POOL)
+			pool.add(buffer);
+		else
+			pooled.decrementAndGet();
+	}
+
+	/** a field every block has, got from addField */
+	public static class Field {
+		/** the name of the field */
+		public final String name;
+
+		/** the type of the field */
+		public final int type;
+
+		/** where the field's values start in a chunk's buffer */
+		final int offset;
+
+		Field(String n, int t, int o) {
+			name = n;
+			type = t;
+			offset = o;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Chunk;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldListener;
+
+/**
+ * catches chunk based events, the fluids stop reading a chunk when it unloads and
+ * the changes and flows waiting on it are put back when it loads
+ *
+ * @author mindless728
+ */
+public class FluidWorldListener extends WorldListener {
+	/** the plugin that is associated with this event listener */
+	private FluidFlow plugin;
+
+	/**
+	 * Constructor taking the FluidFlow plugin as a parameter
+	 *
+	 * @param p the fluid flow plugin
+	 */
+	public FluidWorldListener(FluidFlow p) {
+		plugin = p;
+	}
+
+	/**
+	 * gets the packed key of a chunk
+	 *
+	 * @param chunk the chunk
+	 *
+	 * @return the packed key of the chunk
+	 */
+	private static long getChunkKey(Chunk chunk) {
+		return BlockKey.packChunk(BlockKey.getWorldId(chunk.getWorld()), chunk.getX(), chunk.getZ());
+	}
+
+	/**
+	 * puts back the changes and flows that were waiting on the chunk
+	 *
+	 * @param event the event that happened
+	 */
+	@Override
+	public void onChunkLoad(ChunkLoadEvent event) {
+		BlockChanger changer = plugin.getBlockChanger();
+		if(changer != null)
+			changer.chunkLoaded(getChunkKey(event.getChunk()));
+	}
+
+	/**
+	 * marks the chunk unloaded so the fluids stop reading it
+	 *
+	 * @param event the event that happened
+	 */
+	@Override
+	public void onChunkUnload(ChunkUnloadEvent event) {
+		BlockChanger changer = plugin.getBlockChanger();
+		if(changer != null && !event.isCancelled())
+			changer.chunkUnloaded(getChunkKey(event.getChunk()));
+	}
+}
@@ -0,0 +1,608 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.World;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a binary journal of a fluid's pending changes and flows, kept in memory mapped
+ * files in the data folder so a flood picks up where it left off after a restart
+ * or a crash instead of every change being made on shutdown
+ *
+ * every change and flow is appended as it is queued and every change the block
+ * changer makes is appended as applied, the fluid threads reserve their spot
+ * without locking, the journal is written to a new file (a segment) at every
+ * checkpoint, which starts with everything still pending and then takes the
+ * appends, once it is written the older segments are deleted, a checkpoint is
+ * taken every so often and when the journal is closed
+ *
+ * when a segment fills up the appends go on in a new segment right away and a
+ * checkpoint is taken on its own thread, so a fluid thread never waits for one
+ *
+ * on open the newest segment with a finished checkpoint and any after it are
+ * replayed, a change that was applied after it was appended is taken back out so
+ * the blocks players or other plugins changed since aren't set back
+ *
+ * records are 12 bytes, an int header of the type and its data followed by the
+ * packed key, the header is written last so a record cut off by a crash reads as
+ * empty and is skipped, world ids are not the same between restarts so each
+ * segment records the names of the worlds its keys use
+ *
+ * @author mindless728
+ */
+public class Journal {
+	/** the int at the start of every segment, "FFJ1" */
+	private static final int MAGIC = 0x46464A31;
+
+	/** the bytes at the start of a segment, the magic, the flags and a spare int */
+	private static final int HEADER = 12;
+
+	/** the bytes in a record */
+	private static final int RECORD = 12;
+
+	/** where the flags are in the header */
+	private static final int FLAGS = 4;
+
+	/** the flag set once the checkpoint at the start of a segment is written */
+	private static final int COMPLETE = 1;
+
+	/** a change, the data is the id of the material */
+	private static final int CHANGE = 1;
+
+	/** a flow, there is no data */
+	private static final int FLOW = 2;
+
+	/** the name of a world, the data is the world id and the length of the name, the name follows in whole records */
+	private static final int WORLD = 3;
+
+	/** a change the block changer made, the data is the id of the material */
+	private static final int APPLIED = 4;
+
+	/** the end of the file names of the segments */
+	private static final String SUFFIX = ".journal";
+
+	/** the folder the segments are kept in */
+	private File folder;
+
+	/** the start of the file names of the segments */
+	private String name;
+
+	/** the smallest a segment is made in bytes */
+	private int segmentSize;
+
+	/** the segment being appended to, null if the journal is not open */
+	private volatile Segment active;
+
+	/** the number of the next segment */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/** held while the active segment is replaced, not held through a checkpoint */
+	private final Object rollLock = new Object();
+
+	/** whether or not a checkpoint thread for a full segment is running */
+	private final AtomicBoolean checkpointing = new AtomicBoolean();
+
+	/** the changed blocks written at a checkpoint */
+	private ChangedBlocks changedBlocks;
+
+	/** the flows written at a checkpoint */
+	private FlowQueue flows;
+
+	/** the flows on disk written at a checkpoint, null if the fluid doesn't spill */
+	private volatile FlowSpill spill;
+
+	/** the flows waiting on chunks to load written at a checkpoint, null if there are none */
+	private volatile ParkedFlows parked;
+
+	/**
+	 * Constructor taking where to keep the journal
+	 *
+	 * @param f the folder to keep the segments in
+	 * @param n the name the segments start with
+	 * @param size the smallest a segment is made in bytes
+	 */
+	public Journal(File f, String n, int size) {
+		folder = f;
+		name = n;
+		segmentSize = Math.max(size, 4096);
+	}
+
+	/**
+	 * replays the journal into the fluid's changes and flows then starts a new
+	 * segment with them, called before the fluid starts
+	 *
+	 * @param cb the changed blocks of the fluid
+	 * @param fq the flow queue of the fluid
+	 * @param server the server, to find the worlds by name
+	 *
+	 * @return the amount of records replayed, -1 if the journal could not be opened
+	 */
+	public synchronized int open(ChangedBlocks cb, FlowQueue fq, Server server) {
+		File[] files;
+		int start = 0, ret = 0;
+
+		changedBlocks = cb;
+		flows = fq;
+
+		try {
+			if(!folder.exists())
+				folder.mkdirs();
+
+			//replay from the newest finished checkpoint
+			files = segments();
+			for(int i = 0; i < files.length; ++i)
+				if(isComplete(files[i]))
+					start = i;
+			for(int i = start; i < files.length; ++i)
+				ret += replay(files[i], server);
+			if(files.length > 0)
+				sequence.set(sequenceOf(files[files.length - 1]) + 1);
+
+			//write what was replayed to a new segment and drop the old ones
+			checkpoint();
+			return (active == null) ? -1 : ret;
+		} catch(IOException ioe) {
+			System.out.println("**** ERROR! could not open the journal "+name+": "+ioe.getMessage()+" ****");
+			active = null;
+			return -1;
+		}
+	}
+
+	/**
+	 * appends a change
+	 *
+	 * @param key the packed key of the block
+	 * @param typeId the id of the material the block is changed to
+	 */
+	public void change(long key, int typeId) {
+		append((CHANGE << 24) | (typeId & 0xFFFF), key);
+	}
+
+	/**
+	 * appends a change the block changer made, so it isn't replayed
+	 *
+	 * @param key the packed key of the block
+	 * @param typeId the id of the material the block was changed to
+	 */
+	public void applied(long key, int typeId) {
+		append((APPLIED << 24) | (typeId & 0xFFFF), key);
+	}
+
+	/**
+	 * appends a flow
+	 *
+	 * @param key the packed key of the block
+	 */
+	public void flow(long key) {
+		append(FLOW << 24, key);
+	}
+
+	/**
+	 * starts a new segment with everything still pending and deletes the older
+	 * segments, the fluid can keep running while this runs, nothing is done if
+	 * nothing was pending at the last checkpoint and nothing was appended since
+	 */
+	public synchronized void checkpoint() {
+		Segment s = active;
+		long needed;
+
+		if(changedBlocks == null || (s != null && s.checkpoint && s.position.get() == HEADER))
+			return;
+
+		//make the segment big enough for everything pending twice over so it doesn't fill up while being written
+		needed = HEADER + (changedBlocks.size() + (long)flows.size() + ((spill == null) ? 0 : spill.size()) + ((parked == null) ? 0 : parked.size())) * RECORD * 2 +
+				 BlockKey.MAX_WORLDS * RECORD * 8;
+		try {
+			s = newSegment((int)Math.min(Integer.MAX_VALUE, Math.max(segmentSize, needed)));
+			s.checkpoint = true;
+		} catch(IOException ioe) {
+			System.out.println("**** ERROR! could not write the journal "+name+", it is turned off: "+ioe.getMessage()+" ****");
+			synchronized(rollLock) {
+				active = null;
+			}
+			changedBlocks = null;
+			return;
+		}
+
+		//from here on the appends go to the new segment, anything queued before is in the fluid and written here
+		synchronized(rollLock) {
+			active = s;
+		}
+		changedBlocks.journal(this);
+		flows.journal(this);
+		if(parked != null)
+			parked.journal(this);
+		if(spill != null) {
+			try {
+				spill.journal(this);
+			} catch(IOException ioe) {
+				System.out.println("**** ERROR! could not read the spilled flows into the journal "+name+": "+ioe.getMessage()+" ****");
+			}
+		}
+
+		//mark the checkpoint finished once it is on disk, then the older segments aren't needed
+		s.buffer.force();
+		s.buffer.putInt(FLAGS, COMPLETE);
+		s.buffer.force();
+		deleteBefore(s.sequence);
+	}
+
+	/**
+	 * sets the flows on disk that are written with the rest at a checkpoint
+	 *
+	 * @param s the flows on disk, null if there are none
+	 */
+	public void setSpill(FlowSpill s) {
+		spill = s;
+	}
+
+	/**
+	 * sets the flows waiting on chunks to load that are written with the rest at a checkpoint
+	 *
+	 * @param p the parked flows, null if there are none
+	 */
+	public void setParked(ParkedFlows p) {
+		parked = p;
+	}
+
+	/**
+	 * takes a last checkpoint and stops appending
+	 *
+	 * @return whether or not everything pending was saved
+	 */
+	public synchronized boolean close() {
+		Segment s;
+
+		checkpoint();
+		synchronized(rollLock) {
+			s = active;
+			active = null;
+		}
+		if(s != null)
+			s.buffer.force();
+		changedBlocks = null;
+		flows = null;
+		spill = null;
+		parked = null;
+		return s != null;
+	}
+
+	/** stops appending and deletes the segments, for a fluid whose changes are thrown away */
+	public synchronized void delete() {
+		synchronized(rollLock) {
+			active = null;
+		}
+		changedBlocks = null;
+		flows = null;
+		spill = null;
+		parked = null;
+		deleteBefore(Long.MAX_VALUE);
+	}
+
+	/**
+	 * checks to see if the journal is taking appends
+	 *
+	 * @return whether or not the journal is open
+	 */
+	public boolean isOpen() {
+		return active != null;
+	}
+
+	/**
+	 * appends a record, starting a new segment if the current one is full
+	 *
+	 * @param header the type and data of the record
+	 * @param key the packed key of the block
+	 */
+	private void append(int header, long key) {
+		int worldId = BlockKey.getWorldId(key);
+		Segment s;
+		int p;
+
+		while((s = active) != null) {
+			//the segment has to know the name of the key's world
+			if((s.worlds.get() & (1L << worldId)) != 0 || s.writeWorld(worldId)) {
+				if((p = s.reserve(RECORD)) >= 0) {
+					s.buffer.putLong(p + 4, key);
+					s.buffer.putInt(p, header);
+					return;
+				}
+			}
+			roll(s);
+		}
+	}
+
+	/**
+	 * goes on in a new segment because a segment is full, unless another thread
+	 * already did, then takes a checkpoint on another thread so the old segments
+	 * can go
+	 *
+	 * @param full the segment that is full
+	 */
+	private void roll(Segment full) {
+		synchronized(rollLock) {
+			if(active != full)
+				return;
+			try {
+				active = newSegment(segmentSize);
+			} catch(IOException ioe) {
+				System.out.println("**** ERROR! could not write the journal "+name+", it is turned off: "+ioe.getMessage()+" ****");
+				active = null;
+				return;
+			}
+		}
+
+		if(!checkpointing.compareAndSet(false, true))
+			return;
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					checkpoint();
+				} finally {
+					checkpointing.set(false);
+				}
+			}
+		}, name+" journal checkpoint").start();
+	}
+
+	/**
+	 * makes the next segment
+	 *
+	 * @param size the size of the segment in bytes
+	 *
+	 * @return the segment
+	 */
+	private Segment newSegment(int size) throws IOException {
+		long seq = sequence.getAndIncrement();
+		return new Segment(new File(folder, name+"."+seq+SUFFIX), seq, size);
+	}
+
+	/**
+	 * reads the changes and flows of a segment into the fluid
+	 *
+	 * @param file the segment
+	 * @param server the server, to find the worlds by name
+	 *
+	 * @return the amount of records replayed
+	 */
+	private int replay(File file, Server server) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		int[] worldIds = new int[BlockKey.MAX_WORLDS];
+		int header, type, length, ret = 0;
+		byte[] bytes;
+		World world;
+		FluidBlock fb;
+		Material m;
+		long key;
+
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if(buffer.limit() < HEADER || buffer.getInt(0) != MAGIC)
+			return 0;
+
+		//the world names can be anywhere in the segment, find them first
+		Arrays.fill(worldIds, -1);
+		for(int p = HEADER; p + RECORD <= buffer.limit(); p += RECORD) {
+			header = buffer.getInt(p);
+			if((header >>> 24) != WORLD)
+				continue;
+			length = header & 0xFFFF;
+			bytes = new byte[length];
+			for(int i = 0; i < length && p + RECORD + i < buffer.limit(); ++i)
+				bytes[i] = buffer.get(p + RECORD + i);
+			world = (server == null) ? null : server.getWorld(new String(bytes, "UTF-8"));
+			if(world != null)
+				worldIds[(header >>> 16) & (BlockKey.MAX_WORLDS - 1)] = BlockKey.getWorldId(world);
+			p += ((length + RECORD - 1) / RECORD) * RECORD;
+		}
+
+		//then put the changes and flows back in the order they were appended
+		for(int p = HEADER; p + RECORD <= buffer.limit(); p += RECORD) {
+			header = buffer.getInt(p);
+			type = header >>> 24;
+			if(type == WORLD) {
+				p += (((header & 0xFFFF) + RECORD - 1) / RECORD) * RECORD;
+				continue;
+			}
+			if(type != CHANGE && type != FLOW && type != APPLIED)
+				continue;
+
+			//skip blocks in worlds that aren't loaded anymore
+			key = buffer.getLong(p + 4);
+			if(worldIds[BlockKey.getWorldId(key)] < 0)
+				continue;
+			fb = new FluidBlock(BlockKey.pack(worldIds[BlockKey.getWorldId(key)], BlockKey.getX(key), BlockKey.getY(key), BlockKey.getZ(key)));
+
+			if(type == APPLIED) {
+				//the change was made, don't make it again unless the block was changed since
+				changedBlocks.discard(fb.key, header & 0xFFFF);
+				continue;
+			} else if(type == CHANGE) {
+				if((m = ChangedBlocks.getMaterial(header & 0xFFFF)) == null)
+					continue;
+				fb.newType = m;
+				changedBlocks.add(fb, m);
+			} else {
+				flows.add(fb);
+			}
+			++ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * gets the segments of the journal in the order they were written
+	 *
+	 * @return the segment files
+	 */
+	private File[] segments() {
+		ArrayList<File> ret = new ArrayList<File>();
+		File[] files = folder.listFiles();
+		File temp;
+
+		if(files != null)
+			for(File f : files)
+				if(sequenceOf(f) >= 0)
+					ret.add(f);
+
+		files = ret.toArray(new File[ret.size()]);
+		for(int i = 1; i < files.length; ++i)
+			for(int j = i; j > 0 && sequenceOf(files[j - 1]) > sequenceOf(files[j]); --j) {
+				temp = files[j];
+				files[j] = files[j - 1];
+				files[j - 1] = temp;
+			}
+		return files;
+	}
+
+	/**
+	 * gets the number of a segment from its file name
+	 *
+	 * @param file the file
+	 *
+	 * @return the number of the segment, -1 if the file isn't a segment of this journal
+	 */
+	private long sequenceOf(File file) {
+		String n = file.getName();
+
+		if(!n.startsWith(name+".") || !n.endsWith(SUFFIX))
+			return -1;
+		try {
+			return Long.parseLong(n.substring(name.length() + 1, n.length() - SUFFIX.length()));
+		} catch(NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * checks to see if the checkpoint at the start of a segment was finished
+	 *
+	 * @param file the segment
+	 *
+	 * @return whether or not the checkpoint was finished
+	 */
+	private static boolean isComplete(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			return raf.length() >= HEADER && raf.readInt() == MAGIC && (raf.readInt() & COMPLETE) != 0;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * deletes the segments before a number, a segment still mapped on a system
+	 * that can't delete it is skipped and deleted on a later checkpoint
+	 *
+	 * @param seq the number of the first segment to keep
+	 */
+	private void deleteBefore(long seq) {
+		for(File f : segments())
+			if(sequenceOf(f) < seq)
+				f.delete();
+	}
+
+	/** a file of the journal, mapped into memory */
+	private static class Segment {
+		/** the number of the segment */
+		final long sequence;
+
+		/** the mapped file */
+		final MappedByteBuffer buffer;
+
+		/** where the next record goes */
+		final AtomicInteger position;
+
+		/** the worlds whose names are written in the segment, a bit per world id */
+		final AtomicLong worlds;
+
+		/** whether or not the segment starts with a checkpoint, false for one that goes on from a full segment */
+		boolean checkpoint;
+
+		Segment(File file, long seq, int size) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+			try {
+				raf.setLength(size);
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				raf.close();
+			}
+			sequence = seq;
+			position = new AtomicInteger(HEADER);
+			worlds = new AtomicLong();
+			buffer.putInt(0, MAGIC);
+		}
+
+		/**
+		 * reserves room for records
+		 *
+		 * @param bytes the amount of bytes to reserve
+		 *
+		 * @return where the room starts, -1 if the segment is full
+		 */
+		int reserve(int bytes) {
+			int p;
+
+			while(true) {
+				p = position.get();
+				if(p + bytes > buffer.capacity())
+					return -1;
+				if(position.compareAndSet(p, p + bytes))
+					return p;
+			}
+		}
+
+		/**
+		 * writes the name of a world the first time one of its keys is appended
+		 *
+		 * @param id the world id
+		 *
+		 * @return false if the segment is full
+		 */
+		boolean writeWorld(int id) {
+			World world = BlockKey.getWorld(id);
+			byte[] bytes;
+			long w;
+			int p;
+
+			//only one thread writes the name, the rest may append their keys first which is fine since replay finds the names first
+			do {
+				w = worlds.get();
+				if((w & (1L << id)) != 0)
+					return true;
+			} while(!worlds.compareAndSet(w, w | (1L << id)));
+
+			try {
+				bytes = (world == null) ? new byte[0] : world.getName().getBytes("UTF-8");
+			} catch(IOException ioe) {
+				bytes = new byte[0];
+			}
+
+			if((p = reserve(RECORD + ((bytes.length + RECORD - 1) / RECORD) * RECORD)) < 0) {
+				worlds.addAndGet(-(1L << id));
+				return false;
+			}
+			for(int i = 0; i < bytes.length; ++i)
+				buffer.put(p + RECORD + i, bytes[i]);
+			buffer.putInt(p, (WORLD << 24) | (id << 16) | (bytes.length & 0xFFFF));
+			return true;
+		}
+	}
+}
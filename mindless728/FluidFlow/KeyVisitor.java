@@ -0,0 +1,17 @@
+package mindless728.FluidFlow;
+
+/**
+ * called with packed block keys, so blocks can be walked without creating objects
+ *
+ * @author mindless728
+ */
+public interface KeyVisitor {
+	/**
+	 * called for each block
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return true to keep going, false to stop
+	 */
+	public boolean visit(long key);
+}
@@ -0,0 +1,133 @@
+package mindless728.FluidFlow;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * counts nano-second times in buckets that grow with the time, like an HDR
+ * histogram, so any percentile can be read back to within about 3% without
+ * keeping the times themselves
+ *
+ * values below 32 get a bucket each, above that every power of 2 is split into
+ * 32 buckets, recording is a single array write and never allocates
+ *
+ * the times are recorded from one thread, they can be read from any
+ *
+ * @author mindless728
+ */
+public class LatencyHistogram {
+	/** the bits of a value kept below its highest bit */
+	private static final int SUB_BITS = 5;
+
+	/** the amount of buckets each power of 2 is split into */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** the amount of buckets, enough for any positive long */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	/** the counts of the buckets */
+	private final AtomicLongArray counts;
+
+	/** the amount of values recorded */
+	private volatile long total;
+
+	/** the largest value recorded */
+	private volatile long max;
+
+	/** default constructor */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+	}
+
+	/**
+	 * records a value, only called from one thread
+	 *
+	 * @param value the value to record, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		int i;
+
+		if(value < 0)
+			value = 0;
+		i = bucket(value);
+		counts.lazySet(i, counts.get(i) + 1);
+		if(value > max)
+			max = value;
+		++total;
+	}
+
+	/**
+	 * gets the value that a percentage of the recorded values are at or below
+	 *
+	 * @param percentile the percentage, 0 to 100
+	 *
+	 * @return the highest value of the bucket the percentile falls in, 0 if nothing is recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = total;
+		long target, seen = 0;
+
+		if(n == 0)
+			return 0;
+		target = Math.max(1, (long)Math.ceil(n * Math.min(percentile, 100.0) / 100.0));
+		for(int i = 0; i < BUCKETS; ++i) {
+			seen += counts.get(i);
+			if(seen >= target)
+				return Math.min(highest(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * @return the amount of values recorded
+	 */
+	public long getCount() {
+		return total;
+	}
+
+	/**
+	 * @return the largest value recorded, 0 if nothing is recorded
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/** forgets all of the recorded values, only called from the thread recording */
+	public void reset() {
+		for(int i = 0; i < BUCKETS; ++i)
+			counts.lazySet(i, 0);
+		max = 0;
+		total = 0;
+	}
+
+	/**
+	 * gets the bucket a value falls in
+	 *
+	 * @param value the value, not negative
+	 *
+	 * @return the index of the bucket
+	 */
+	private static int bucket(long value) {
+		int magnitude;
+
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		magnitude = 63 - Long.numberOfLeadingZeros(value);
+		return ((magnitude - SUB_BITS + 1) << SUB_BITS) + (int)((value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * gets the highest value that falls in a bucket
+	 *
+	 * @param index the index of the bucket
+	 *
+	 * @return the highest value of the bucket
+	 */
+	private static long highest(int index) {
+		int magnitude;
+
+		if(index < SUB_BUCKETS)
+			return index;
+		magnitude = (index >>> SUB_BITS) + SUB_BITS - 1;
+		return (((long)(SUB_BUCKETS | (index & (SUB_BUCKETS - 1))) + 1) << (magnitude - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,274 @@
+package mindless728.FluidFlow;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * a hash map from primitive long keys (the packed block keys) to non-negative int
+ * values, no Long or Integer objects are created per block
+ *
+ * the map is split into segments, reads never lock and a write only locks the
+ * segment its key falls in for the time of a single probe
+ *
+ * @author mindless728
+ */
+public class LongIntMap {
+	/** the value returned when a key is not in the map */
+	public static final int NO_VALUE = -1;
+
+	/** marks a slot that has never held a key */
+	private static final int FREE = Integer.MIN_VALUE;
+
+	/** marks a slot whose key has been removed */
+	private static final int REMOVED = Integer.MIN_VALUE + 1;
+
+	/** the amount of segments, a power of 2 */
+	private static final int SEGMENTS = 32;
+
+	/** the bits of the hash that pick the segment */
+	private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(SEGMENTS);
+
+	/** the smallest table a segment uses */
+	private static final int MIN_CAPACITY = 16;
+
+	/** the segments of the map */
+	private final Segment[] segments;
+
+	/** default constructor */
+	public LongIntMap() {
+		this(SEGMENTS * MIN_CAPACITY);
+	}
+
+	/**
+	 * Constructor taking the expected amount of keys
+	 *
+	 * @param capacity the amount of keys expected in the map
+	 */
+	public LongIntMap(int capacity) {
+		segments = new Segment[SEGMENTS];
+		for(int i = 0; i < SEGMENTS; ++i)
+			segments[i] = new Segment(tableSize(capacity / SEGMENTS));
+	}
+
+	/**
+	 * gets the value mapped to a key
+	 *
+	 * @param key the key to look up
+	 *
+	 * @return the value mapped to the key, NO_VALUE if there is none
+	 */
+	public int get(long key) {
+		int h = BlockKey.hash(key);
+		return segments[h >>> SEGMENT_SHIFT].get(key, h);
+	}
+
+	/**
+	 * checks to see if a key is in the map
+	 *
+	 * @param key the key to look for
+	 *
+	 * @return whether or not the key is mapped
+	 */
+	public boolean containsKey(long key) {
+		return get(key) != NO_VALUE;
+	}
+
+	/**
+	 * maps a key to a value
+	 *
+	 * @param key the key to map
+	 * @param value the value to map it to, must not be negative
+	 *
+	 * @return the value the key used to be mapped to, NO_VALUE if there was none
+	 */
+	public int put(long key, int value) {
+		if(value < 0)
+			throw new IllegalArgumentException("negative value "+value);
+		int h = BlockKey.hash(key);
+		return segments[h >>> SEGMENT_SHIFT].put(key, h, value);
+	}
+
+	/**
+	 * removes a key from the map
+	 *
+	 * @param key the key to remove
+	 *
+	 * @return the value the key was mapped to, NO_VALUE if there was none
+	 */
+	public int remove(long key) {
+		int h = BlockKey.hash(key);
+		return segments[h >>> SEGMENT_SHIFT].remove(key, h, NO_VALUE);
+	}
+
+	/**
+	 * removes a key from the map only if it is mapped to the given value
+	 *
+	 * @param key the key to remove
+	 * @param value the value the key has to be mapped to
+	 *
+	 * @return whether or not the key was removed
+	 */
+	public boolean remove(long key, int value) {
+		int h = BlockKey.hash(key);
+		return value >= 0 && segments[h >>> SEGMENT_SHIFT].remove(key, h, value) != NO_VALUE;
+	}
+
+	/**
+	 * grabs the amount of keys in the map
+	 *
+	 * @return the amount of keys in the map
+	 */
+	public int size() {
+		int ret = 0;
+		for(Segment s : segments)
+			ret += s.live;
+		return ret;
+	}
+
+	/**
+	 * checks to see if the map is empty
+	 *
+	 * @return whether or not there are any keys in the map
+	 */
+	public boolean isEmpty() {
+		for(Segment s : segments)
+			if(s.live != 0)
+				return false;
+		return true;
+	}
+
+	/** removes all of the keys from the map */
+	public void clear() {
+		for(Segment s : segments)
+			s.clear();
+	}
+
+	/**
+	 * gets the table size to hold an amount of keys at half load
+	 *
+	 * @param keys the amount of keys
+	 *
+	 * @return the table size, a power of 2
+	 */
+	private static int tableSize(int keys) {
+		int ret = MIN_CAPACITY;
+		while(ret < keys * 2)
+			ret <<= 1;
+		return ret;
+	}
+
+	/** the keys and values of a segment, swapped out whole when the segment grows */
+	private static class Table {
+		/** the keys, only valid where the value is not FREE */
+		final long[] keys;
+
+		/** the values, written after the key so readers see the key */
+		final AtomicIntegerArray values;
+
+		Table(int size) {
+			keys = new long[size];
+			values = new AtomicIntegerArray(size);
+			for(int i = 0; i < size; ++i)
+				values.lazySet(i, FREE);
+		}
+	}
+
+	/** a part of the map with its own open addressed table */
+	private static class Segment {
+		/** the current table */
+		private volatile Table table;
+
+		/** the amount of keys in the table */
+		private volatile int live;
+
+		/** the amount of removed slots in the table, only touched while locked */
+		private int removed;
+
+		Segment(int size) {
+			table = new Table(size);
+		}
+
+		int get(long key, int h) {
+			Table t = table;
+			int mask = t.keys.length - 1;
+			int v;
+
+			for(int i = h & mask; (v = t.values.get(i)) != FREE; i = (i + 1) & mask)
+				if(t.keys[i] == key)
+					return (v == REMOVED) ? NO_VALUE : v;
+			return NO_VALUE;
+		}
+
+		synchronized int put(long key, int h, int value) {
+			Table t = table;
+			int mask = t.keys.length - 1;
+			int i, v;
+
+			//a key only ever has one slot, reuse it if it is there
+			for(i = h & mask; (v = t.values.get(i)) != FREE; i = (i + 1) & mask) {
+				if(t.keys[i] == key) {
+					t.values.set(i, value);
+					if(v != REMOVED)
+						return v;
+					--removed;
+					++live;
+					return NO_VALUE;
+				}
+			}
+
+			//grow or clean the table if the new key would make it too full
+			if((live + removed + 1) * 4 > t.keys.length * 3) {
+				rehash();
+				return put(key, h, value);
+			}
+
+			t.keys[i] = key;
+			t.values.set(i, value);
+			++live;
+			return NO_VALUE;
+		}
+
+		synchronized int remove(long key, int h, int expected) {
+			Table t = table;
+			int mask = t.keys.length - 1;
+			int v;
+
+			for(int i = h & mask; (v = t.values.get(i)) != FREE; i = (i + 1) & mask) {
+				if(t.keys[i] == key) {
+					if(v == REMOVED || (expected != NO_VALUE && v != expected))
+						return NO_VALUE;
+					t.values.set(i, REMOVED);
+					--live;
+					++removed;
+					return v;
+				}
+			}
+			return NO_VALUE;
+		}
+
+		synchronized void clear() {
+			table = new Table(MIN_CAPACITY);
+			live = 0;
+			removed = 0;
+		}
+
+		/** copies the live keys into a new table, dropping the removed slots */
+		private void rehash() {
+			Table old = table;
+			Table t = new Table(tableSize(live + 1));
+			int mask = t.keys.length - 1;
+			int i, v;
+
+			for(int j = 0; j < old.keys.length; ++j) {
+				v = old.values.get(j);
+				if(v == FREE || v == REMOVED)
+					continue;
+				for(i = BlockKey.hash(old.keys[j]) & mask; t.values.get(i) != FREE; i = (i + 1) & mask);
+				t.keys[i] = old.keys[j];
+				t.values.lazySet(i, v);
+			}
+
+			removed = 0;
+			table = t;
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package mindless728.FluidFlow;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * a hash map from primitive long keys (packed block or chunk keys) to objects,
+ * no Long objects are created per lookup
+ *
+ * works the same as LongIntMap, reads never lock and a write only locks the
+ * segment its key falls in for the time of a single probe
+ *
+ * @author mindless728
+ */
+public class LongObjectMap<V> {
+	/** marks a slot whose key has been removed */
+	private static final Object REMOVED = new Object();
+
+	/** the amount of segments, a power of 2 */
+	private static final int SEGMENTS = 32;
+
+	/** the bits of the hash that pick the segment */
+	private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(SEGMENTS);
+
+	/** the smallest table a segment uses */
+	private static final int MIN_CAPACITY = 8;
+
+	/** the segments of the map */
+	private final Segment[] segments;
+
+	/** default constructor */
+	public LongObjectMap() {
+		segments = new Segment[SEGMENTS];
+		for(int i = 0; i < SEGMENTS; ++i)
+			segments[i] = new Segment();
+	}
+
+	/**
+	 * gets the value mapped to a key
+	 *
+	 * @param key the key to look up
+	 *
+	 * @return the value mapped to the key, null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int h = BlockKey.hash(key);
+		return (V)segments[h >>> SEGMENT_SHIFT].get(key, h);
+	}
+
+	/**
+	 * checks to see if a key is in the map
+	 *
+	 * @param key the key to look for
+	 *
+	 * @return whether or not the key is mapped
+	 */
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * maps a key to a value
+	 *
+	 * @param key the key to map
+	 * @param value the value to map it to, not null
+	 *
+	 * @return the value the key used to be mapped to, null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int h = BlockKey.hash(key);
+		return (V)segments[h >>> SEGMENT_SHIFT].put(key, h, value, false);
+	}
+
+	/**
+	 * maps a key to a value only if the key isn't mapped yet
+	 *
+	 * @param key the key to map
+	 * @param value the value to map it to, not null
+	 *
+	 * @return the value the key is already mapped to, null if the new value was mapped
+	 */
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(long key, V value) {
+		int h = BlockKey.hash(key);
+		return (V)segments[h >>> SEGMENT_SHIFT].put(key, h, value, true);
+	}
+
+	/**
+	 * removes a key from the map
+	 *
+	 * @param key the key to remove
+	 *
+	 * @return the value the key was mapped to, null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int h = BlockKey.hash(key);
+		return (V)segments[h >>> SEGMENT_SHIFT].remove(key, h, null);
+	}
+
+	/**
+	 * removes a key from the map only if it is mapped to the given value
+	 *
+	 * @param key the key to remove
+	 * @param value the value the key has to be mapped to
+	 *
+	 * @return whether or not the key was removed
+	 */
+	public boolean remove(long key, V value) {
+		int h = BlockKey.hash(key);
+		return segments[h >>> SEGMENT_SHIFT].remove(key, h, value) != null;
+	}
+
+	/**
+	 * grabs the amount of keys in the map
+	 *
+	 * @return the amount of keys in the map
+	 */
+	public int size() {
+		int ret = 0;
+		for(Segment s : segments)
+			ret += s.live;
+		return ret;
+	}
+
+	/**
+	 * checks to see if the map is empty
+	 *
+	 * @return whether or not there are any keys in the map
+	 */
+	public boolean isEmpty() {
+		for(Segment s : segments)
+			if(s.live != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * adds all of the values in the map to a collection, values changed while
+	 * this runs may or may not be seen
+	 *
+	 * @param c the collection to add the values to
+	 *
+	 * @return the collection passed in
+	 */
+	@SuppressWarnings("unchecked")
+	public <C extends Collection<? super V>> C values(C c) {
+		for(Segment s : segments)
+			s.values((Collection<Object>)c);
+		return c;
+	}
+
+	/** removes all of the keys from the map */
+	public void clear() {
+		for(Segment s : segments)
+			s.clear();
+	}
+
+	/**
+	 * gets the table size to hold an amount of keys at half load
+	 *
+	 * @param keys the amount of keys
+	 *
+	 * @return the table size, a power of 2
+	 */
+	private static int tableSize(int keys) {
+		int ret = MIN_CAPACITY;
+		while(ret < keys * 2)
+			ret <<= 1;
+		return ret;
+	}
+
+	/** the keys and values of a segment, swapped out whole when the segment grows */
+	private static class Table {
+		/** the keys, only valid where the value is not null */
+		final long[] keys;
+
+		/** the values, written after the key so readers see the key */
+		final AtomicReferenceArray<Object> values;
+
+		Table(int size) {
+			keys = new long[size];
+			values = new AtomicReferenceArray<Object>(size);
+		}
+	}
+
+	/** a part of the map with its own open addressed table */
+	private static class Segment {
+		/** the current table */
+		private volatile Table table = new Table(MIN_CAPACITY);
+
+		/** the amount of keys in the table */
+		private volatile int live;
+
+		/** the amount of removed slots in the table, only touched while locked */
+		private int removed;
+
+		Object get(long key, int h) {
+			Table t = table;
+			int mask = t.keys.length - 1;
+			Object v;
+
+			for(int i = h & mask; (v = t.values.get(i)) != null; i = (i + 1) & mask)
+				if(t.keys[i] == key)
+					return (v == REMOVED) ? null : v;
+			return null;
+		}
+
+		synchronized Object put(long key, int h, Object value, boolean onlyIfAbsent) {
+			Table t = table;
+			int mask = t.keys.length - 1;
+			int i;
+			Object v;
+
+			if(value == null)
+				throw new NullPointerException();
+
+			//a key only ever has one slot, reuse it if it is there
+			for(i = h & mask; (v = t.values.get(i)) != null; i = (i + 1) & mask) {
+				if(t.keys[i] == key) {
+					if(v != REMOVED) {
+						if(!onlyIfAbsent)
+							t.values.set(i, value);
+						return v;
+					}
+					t.values.set(i, value);
+					--removed;
+					++live;
+					return null;
+				}
+			}
+
+			//grow or clean the table if the new key would make it too full
+			if((live + removed + 1) * 4 > t.keys.length * 3) {
+				rehash();
+				return put(key, h, value, onlyIfAbsent);
+			}
+
+			t.keys[i] = key;
+			t.values.set(i, value);
+			++live;
+			return null;
+		}
+
+		synchronized Object remove(long key, int h, Object expected) {
+			Table t = table;
+			int mask = t.keys.length - 1;
+			Object v;
+
+			for(int i = h & mask; (v = t.values.get(i)) != null; i = (i + 1) & mask) {
+				if(t.keys[i] == key) {
+					if(v == REMOVED || (expected != null && v != expected))
+						return null;
+					t.values.set(i, REMOVED);
+					--live;
+					++removed;
+					return v;
+				}
+			}
+			return null;
+		}
+
+		void values(Collection<Object> c) {
+			Table t = table;
+			Object v;
+
+			for(int i = 0; i < t.keys.length; ++i) {
+				v = t.values.get(i);
+				if(v != null && v != REMOVED)
+					c.add(v);
+			}
+		}
+
+		synchronized void clear() {
+			table = new Table(MIN_CAPACITY);
+			live = 0;
+			removed = 0;
+		}
+
+		/** copies the live keys into a new table, dropping the removed slots */
+		private void rehash() {
+			Table old = table;
+			Table t = new Table(tableSize(live + 1));
+			int mask = t.keys.length - 1;
+			int i;
+			Object v;
+
+			for(int j = 0; j < old.keys.length; ++j) {
+				v = old.values.get(j);
+				if(v == null || v == REMOVED)
+					continue;
+				for(i = BlockKey.hash(old.keys[j]) & mask; t.values.get(i) != null; i = (i + 1) & mask);
+				t.keys[i] = old.keys[j];
+				t.values.lazySet(i, v);
+			}
+
+			removed = 0;
+			table = t;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.block.BlockFace;
+
+/**
+ * a set of offsets around a block, the neighbours of a packed key are worked out
+ * with BlockKey.relative and written into a buffer the caller keeps or passed to a
+ * KeyVisitor, so a fluid can expand blocks without creating any objects
+ *
+ * neighbours above or below the world are skipped, they are given in the order of
+ * the offsets so a fluid can rely on it, down comes first in the built in ones
+ *
+ * @author mindless728
+ */
+public class Neighbourhood {
+	/** the 6 blocks that share a face: down, north, east, south, west, up */
+	public static final Neighbourhood FACES = new Neighbourhood(new int[][] {
+		{0, -1, 0}, {-1, 0, 0}, {0, 0, -1}, {1, 0, 0}, {0, 0, 1}, {0, 1, 0}
+	});
+
+	/** the 4 blocks beside a block: north, east, south, west */
+	public static final Neighbourhood HORIZONTAL = new Neighbourhood(new int[][] {
+		{-1, 0, 0}, {0, 0, -1}, {1, 0, 0}, {0, 0, 1}
+	});
+
+	/** the 26 blocks in the 3x3x3 cube around a block, the layer below first, then the layer of the block, then the layer above */
+	public static final Neighbourhood CUBE;
+
+	static {
+		int[][] cube = new int[26][];
+		int i = 0;
+		for(int y = -1; y <= 1; ++y)
+			for(int x = -1; x <= 1; ++x)
+				for(int z = -1; z <= 1; ++z)
+					if(x != 0 || y != 0 || z != 0)
+						cube[i++] = new int[] {x, y, z};
+		CUBE = new Neighbourhood(cube);
+	}
+
+	/** the offsets along each axis */
+	private final int[] dx, dy, dz;
+
+	/**
+	 * Constructor taking the offsets
+	 *
+	 * @param offsets the x, y and z of each offset
+	 */
+	public Neighbourhood(int[][] offsets) {
+		dx = new int[offsets.length];
+		dy = new int[offsets.length];
+		dz = new int[offsets.length];
+		for(int i = 0; i < offsets.length; ++i) {
+			dx[i] = offsets[i][0];
+			dy[i] = offsets[i][1];
+			dz[i] = offsets[i][2];
+		}
+	}
+
+	/**
+	 * Constructor taking the block faces to use as the offsets
+	 *
+	 * @param faces the block faces
+	 */
+	public Neighbourhood(BlockFace[] faces) {
+		dx = new int[faces.length];
+		dy = new int[faces.length];
+		dz = new int[faces.length];
+		for(int i = 0; i < faces.length; ++i) {
+			dx[i] = faces[i].getModX();
+			dy[i] = faces[i].getModY();
+			dz[i] = faces[i].getModZ();
+		}
+	}
+
+	/**
+	 * gets the amount of offsets, the most neighbours a block can have
+	 *
+	 * @return the size a buffer has to be for fill
+	 */
+	public int size() {
+		return dx.length;
+	}
+
+	/**
+	 * writes the packed keys of the neighbours of a block into a buffer
+	 *
+	 * @param key the packed key of the block
+	 * @param buffer where the keys are written, at least size() long
+	 *
+	 * @return the amount of keys written
+	 */
+	public int fill(long key, long[] buffer) {
+		int y = BlockKey.getY(key);
+		int ret = 0;
+
+		for(int i = 0; i < dx.length; ++i)
+			if(BlockKey.isInWorld(y + dy[i]))
+				buffer[ret++] = BlockKey.relative(key, dx[i], dy[i], dz[i]);
+		return ret;
+	}
+
+	/**
+	 * passes the packed keys of the neighbours of a block to a visitor
+	 *
+	 * @param key the packed key of the block
+	 * @param visitor the visitor to pass the keys to
+	 *
+	 * @return the amount of neighbours visited, stopping early if the visitor returns false
+	 */
+	public int visit(long key, KeyVisitor visitor) {
+		int y = BlockKey.getY(key);
+		int ret = 0;
+
+		for(int i = 0; i < dx.length; ++i) {
+			if(!BlockKey.isInWorld(y + dy[i]))
+				continue;
+			++ret;
+			if(!visitor.visit(BlockKey.relative(key, dx[i], dy[i], dz[i])))
+				break;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,151 @@
+package mindless728.FluidFlow;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the flows of a fluid that ran into a chunk that isn't loaded, kept by the chunk
+ * until it loads and then run again, a block is only kept once
+ *
+ * @author mindless728
+ */
+public class ParkedFlows {
+	/** the parked flows, by the packed key of the chunk they wait on */
+	private final LongObjectMap<Keys> chunks;
+
+	/** the blocks that are parked, so a block is only parked once */
+	private final LongIntMap members;
+
+	/** the amount of parked flows */
+	private final AtomicInteger count;
+
+	/** default constructor */
+	public ParkedFlows() {
+		chunks = new LongObjectMap<Keys>();
+		members = new LongIntMap();
+		count = new AtomicInteger();
+	}
+
+	/**
+	 * parks a flow until a chunk loads
+	 *
+	 * @param chunkKey the packed key of the chunk the flow waits on
+	 * @param key the packed key of the flow's block
+	 */
+	public void park(long chunkKey, long key) {
+		Keys keys, temp;
+
+		if(members.put(key, 1) != LongIntMap.NO_VALUE)
+			return;
+
+		if((keys = chunks.get(chunkKey)) == null && (keys = chunks.putIfAbsent(chunkKey, temp = new Keys(chunkKey))) == null)
+			keys = temp;
+
+		//the chunk's keys may have just been taken by unpark, park in a new one
+		if(!keys.add(key)) {
+			chunks.remove(chunkKey, keys);
+			members.remove(key);
+			park(chunkKey, key);
+			return;
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * takes the flows parked on a chunk
+	 *
+	 * @param chunkKey the packed key of the chunk that loaded
+	 *
+	 * @return the packed keys of the flows' blocks, empty if there are none
+	 */
+	public long[] unpark(long chunkKey) {
+		Keys keys = chunks.remove(chunkKey);
+		long[] ret;
+
+		if(keys == null)
+			return new long[0];
+
+		ret = keys.take();
+		for(long key : ret)
+			members.remove(key);
+		count.addAndGet(-ret.length);
+		return ret;
+	}
+
+	/**
+	 * gets the amount of parked flows
+	 *
+	 * @return the amount of flows
+	 */
+	public int size() {
+		return count.get();
+	}
+
+	/**
+	 * gets the amount of chunks flows are parked on
+	 *
+	 * @return the amount of chunks
+	 */
+	public int getChunkCount() {
+		return chunks.size();
+	}
+
+	/** throws away every parked flow */
+	public void clear() {
+		for(Keys keys : chunks.values(new ArrayList<Keys>()))
+			unpark(keys.chunkKey);
+	}
+
+	/**
+	 * appends the parked flows to a journal, they are run when replayed
+	 *
+	 * @param journal the journal to append to
+	 */
+	void journal(Journal journal) {
+		for(Keys keys : chunks.values(new ArrayList<Keys>()))
+			for(long key : keys.copy())
+				journal.flow(key);
+	}
+
+	/** the keys parked on a chunk */
+	private static class Keys {
+		/** the packed key of the chunk */
+		final long chunkKey;
+
+		/** the packed keys of the blocks */
+		private long[] keys = new long[8];
+
+		/** the amount of keys */
+		private int size;
+
+		/** whether or not the keys were taken, nothing can be added after */
+		private boolean taken;
+
+		Keys(long k) {
+			chunkKey = k;
+		}
+
+		synchronized boolean add(long key) {
+			if(taken)
+				return false;
+			if(size == keys.length) {
+				long[] temp = new long[size * 2];
+				System.arraycopy(keys, 0, temp, 0, size);
+				keys = temp;
+			}
+			keys[size++] = key;
+			return true;
+		}
+
+		synchronized long[] take() {
+			taken = true;
+			return copy();
+		}
+
+		synchronized long[] copy() {
+			long[] ret = new long[size];
+			System.arraycopy(keys, 0, ret, 0, size);
+			return ret;
+		}
+	}
+}
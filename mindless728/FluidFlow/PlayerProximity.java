@@ -0,0 +1,76 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+/**
+ * gives chunks closer to an online player a higher priority, the priority is the
+ * squared distance in chunks to the nearest player in the same world, chunks in
+ * worlds without players come last
+ *
+ * @author mindless728
+ */
+public class PlayerProximity implements ChunkPriority {
+	/** the world ids of the players */
+	private int[] worlds = new int[16];
+
+	/** the chunk x coordinates of the players */
+	private int[] xs = new int[16];
+
+	/** the chunk z coordinates of the players */
+	private int[] zs = new int[16];
+
+	/** the amount of players */
+	private int count;
+
+	/**
+	 * takes the positions of the players, called on the server thread
+	 *
+	 * @param players the online players
+	 */
+	public void update(Player[] players) {
+		Location loc;
+
+		if(players.length > worlds.length) {
+			worlds = new int[players.length];
+			xs = new int[players.length];
+			zs = new int[players.length];
+		}
+
+		count = 0;
+		for(Player p : players) {
+			if((loc = p.getLocation()) == null || loc.getWorld() == null)
+				continue;
+			worlds[count] = BlockKey.getWorldId(loc.getWorld());
+			xs[count] = loc.getBlockX() >> 4;
+			zs[count] = loc.getBlockZ() >> 4;
+			++count;
+		}
+	}
+
+	/**
+	 * gets the amount of players the priorities are worked out from
+	 *
+	 * @return the amount of players
+	 */
+	public int getPlayerCount() {
+		return count;
+	}
+
+	public double getPriority(long chunkKey) {
+		int world = BlockKey.getWorldId(chunkKey);
+		int x = BlockKey.getX(chunkKey);
+		int z = BlockKey.getZ(chunkKey);
+		double ret = Double.MAX_VALUE;
+		double dx, dz;
+
+		for(int i = 0; i < count; ++i) {
+			if(worlds[i] != world)
+				continue;
+			dx = xs[i] - x;
+			dz = zs[i] - z;
+			ret = Math.min(ret, dx * dx + dz * dz);
+		}
+		return ret;
+	}
+}
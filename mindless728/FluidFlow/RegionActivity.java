@@ -0,0 +1,249 @@
+package mindless728.FluidFlow;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * keeps track of which 16x16x16 regions of the world a fluid is still changing so
+ * the regions that settled can sleep
+ *
+ * a region is active while it has changes, once its flows have run for sleepTicks
+ * ticks without a single change it is asleep and the flows taken out of it are
+ * thrown away, a change in the region or on the border of it (sides, edges and
+ * corners), or a block broken or placed there, wakes it again, flows that are
+ * still waiting to run don't count so a backlog can't put a region to sleep
+ *
+ * @author mindless728
+ */
+public class RegionActivity {
+	/** the amount of ticks between counting the regions and forgetting the quiet ones */
+	private static final int SWEEP = 20;
+
+	/** marks a region that had no flows run without a change since its last change */
+	private static final int NONE = Integer.MIN_VALUE;
+
+	/** the regions that had changes or flows, by the packed region key */
+	private final LongObjectMap<Activity> regions;
+
+	/** the amount of ticks a region has flows without changes before it sleeps */
+	private final int sleepTicks;
+
+	/** the amount of flows thrown away because their region was asleep */
+	private final AtomicLong slept;
+
+	/** the current tick */
+	private volatile int now;
+
+	/** the amount of regions with changes in the last sleepTicks ticks at the last count */
+	private volatile int activeCount;
+
+	/** the amount of regions asleep at the last count */
+	private volatile int sleepingCount;
+
+	/**
+	 * Constructor taking how long a region has to be quiet before it sleeps
+	 *
+	 * @param ticks the amount of ticks a region has flows without changes before it sleeps
+	 */
+	public RegionActivity(int ticks) {
+		regions = new LongObjectMap<Activity>();
+		sleepTicks = ticks;
+		slept = new AtomicLong();
+	}
+
+	/**
+	 * gets the key of the region a block is in
+	 *
+	 * @param key the packed key of the block
+	 *
+	 * @return the packed key of the region
+	 */
+	public static long getRegionKey(long key) {
+		return BlockKey.pack(BlockKey.getWorldId(key), BlockKey.getX(key) >> FlowQueue.REGION_BITS,
+							 BlockKey.getY(key) >> FlowQueue.REGION_BITS, BlockKey.getZ(key) >> FlowQueue.REGION_BITS);
+	}
+
+	/**
+	 * notes that a block changed, its region and the regions across the sides it
+	 * is on are awake
+	 *
+	 * @param key the packed key of the block
+	 */
+	public void changed(long key) {
+		int sx = side(BlockKey.getX(key)), sy = side(BlockKey.getY(key)), sz = side(BlockKey.getZ(key));
+
+		//a block on the border of a region can be seen from the regions across the sides, edges and corners it is on
+		if(sy != 0 && !BlockKey.isInWorld(BlockKey.getY(key) + sy))
+			sy = 0;
+		for(int dy = 0; dy <= 1; ++dy)
+			for(int dz = 0; dz <= 1; ++dz)
+				for(int dx = 0; dx <= 1; ++dx)
+					if((dx == 0 || sx != 0) && (dy == 0 || sy != 0) && (dz == 0 || sz != 0))
+						mark(BlockKey.relative(key, dx * sx, dy * sy, dz * sz));
+	}
+
+	/**
+	 * wakes the region of a block and the regions next to it, for a block a player changed
+	 *
+	 * @param key the packed key of the block
+	 */
+	public void wake(long key) {
+		changed(key);
+	}
+
+	/**
+	 * called when a flow is taken out to run, checks to see if its region is asleep
+	 *
+	 * @param key the packed key of the flow's block
+	 *
+	 * @return whether or not the region is asleep and the flow should be thrown away
+	 */
+	public boolean isAsleep(long key) {
+		Activity a = regions.get(getRegionKey(key));
+		int flowed;
+
+		if(a == null || (flowed = a.flowed) == NONE || now - flowed < sleepTicks)
+			return false;
+
+		//keep the region around while its flows are being thrown away
+		a.last = now;
+		slept.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * called when a flow ran without changing anything, the first one since the
+	 * region's last change starts its quiet time
+	 *
+	 * @param key the packed key of the flow's block
+	 */
+	public void ran(long key) {
+		Activity a = get(getRegionKey(key));
+		int t = now;
+
+		a.last = t;
+		if(a.flowed == NONE && a.changed != t)
+			a.flowed = t;
+	}
+
+	/** moves on to the next tick, every so often counts the regions and forgets the ones with nothing going on */
+	public void tick() {
+		ArrayList<Activity> temp;
+		int t = ++now, active = 0, sleeping = 0;
+
+		if(t % SWEEP != 0)
+			return;
+
+		temp = regions.values(new ArrayList<Activity>());
+		for(Activity a : temp) {
+			//nothing happened for a whole quiet time, a new flow just starts another one
+			if(t - a.last > sleepTicks) {
+				regions.remove(a.key, a);
+				continue;
+			}
+			if(a.flowed != NONE && t - a.flowed >= sleepTicks)
+				++sleeping;
+			else if(t - a.changed < sleepTicks)
+				++active;
+		}
+		activeCount = active;
+		sleepingCount = sleeping;
+	}
+
+	/**
+	 * gets the amount of regions with changes in the last sleepTicks ticks
+	 *
+	 * @return the amount of active regions at the last count
+	 */
+	public int getActiveCount() {
+		return activeCount;
+	}
+
+	/**
+	 * gets the amount of regions that are asleep
+	 *
+	 * @return the amount of sleeping regions at the last count
+	 */
+	public int getSleepingCount() {
+		return sleepingCount;
+	}
+
+	/**
+	 * gets the amount of flows thrown away because their region was asleep
+	 *
+	 * @return the amount of flows
+	 */
+	public long getSleptFlows() {
+		return slept.get();
+	}
+
+	/** forgets every region */
+	public void clear() {
+		regions.clear();
+	}
+
+	/**
+	 * gets which side of its region a block is on along one axis
+	 *
+	 * @param c the coordinate of the block
+	 *
+	 * @return -1 on the low side, 1 on the high side, 0 inside
+	 */
+	private static int side(int c) {
+		c &= 0xF;
+		return (c == 0) ? -1 : ((c == 0xF) ? 1 : 0);
+	}
+
+	/**
+	 * marks the region of a block as changed this tick
+	 *
+	 * @param key the packed key of the block
+	 */
+	private void mark(long key) {
+		Activity a = get(getRegionKey(key));
+		int t = now;
+
+		//already marked this tick, don't write the same values from every thread
+		if(a.changed == t && a.flowed == NONE)
+			return;
+		a.changed = t;
+		a.last = t;
+		a.flowed = NONE;
+	}
+
+	/**
+	 * gets the activity of a region, adding it if it has none
+	 *
+	 * @param regionKey the packed key of the region
+	 *
+	 * @return the activity of the region
+	 */
+	private Activity get(long regionKey) {
+		Activity ret = regions.get(regionKey), temp;
+
+		if(ret == null && (ret = regions.putIfAbsent(regionKey, temp = new Activity(regionKey, now))) == null)
+			ret = temp;
+		return ret;
+	}
+
+	/** what has gone on in a region */
+	private static class Activity {
+		/** the packed key of the region */
+		final long key;
+
+		/** the tick of the last change */
+		volatile int changed;
+
+		/** the tick of the first flow since the last change, NONE if there was none */
+		volatile int flowed = NONE;
+
+		/** the tick of the last change or flow */
+		volatile int last;
+
+		Activity(long k, int t) {
+			key = k;
+			changed = t;
+			last = t;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.util.config.Configuration;
+
+/**
+ * decides how long the block changer may run each server tick
+ *
+ * in fixed mode it is always the configured runTime, in adaptive mode the real
+ * length of the server ticks is measured and the budget is grown while the server
+ * keeps up with the target ticks per second and there is a backlog, and cut back
+ * when the server falls behind
+ *
+ * @author mindless728
+ */
+public class TickBudget {
+	/** the mode that always uses the configured run time */
+	public static final String FIXED = "fixed";
+
+	/** the mode that adjusts the run time to hold the target ticks per second */
+	public static final String ADAPTIVE = "adaptive";
+
+	/** the nano-seconds in a second */
+	private static final double SECOND = 1000000000.0;
+
+	/** whether or not the budget adapts */
+	private boolean adaptive;
+
+	/** the current budget in nano-seconds */
+	private long runTime;
+
+	/** the lowest the budget can go in nano-seconds */
+	private long minRunTime;
+
+	/** the highest the budget can go in nano-seconds */
+	private long maxRunTime;
+
+	/** the longest a tick can take to hold the target ticks per second, in nano-seconds */
+	private double targetTickTime;
+
+	/** the amount the budget grows by each tick in nano-seconds */
+	private long step;
+
+	/** the averaged length of a server tick in nano-seconds */
+	private double tickTime;
+
+	/** when the last tick started, 0 before the first */
+	private long lastTick;
+
+	/**
+	 * Constructor that reads the budget settings from the configuration
+	 *
+	 * @param config the configuration to read from
+	 * @param fixedRunTime the run time to use in fixed mode and start from in adaptive mode
+	 */
+	public TickBudget(Configuration config, long fixedRunTime) {
+		double targetTps;
+
+		adaptive = ADAPTIVE.equalsIgnoreCase(config.getString("BlockChanger.mode", FIXED));
+		minRunTime = config.getInt("BlockChanger.adaptive.minRunTime", 1000000);
+		maxRunTime = config.getInt("BlockChanger.adaptive.maxRunTime", 40000000);
+		targetTps = config.getDouble("BlockChanger.adaptive.targetTps", 19.5);
+
+		if(maxRunTime < minRunTime)
+			maxRunTime = minRunTime;
+		if(targetTps <= 0)
+			targetTps = 19.5;
+
+		targetTickTime = SECOND / targetTps;
+		tickTime = SECOND / 20;
+		step = Math.max((maxRunTime - minRunTime) / 50, 1);
+		runTime = adaptive ? Math.max(minRunTime, Math.min(maxRunTime, fixedRunTime)) : fixedRunTime;
+	}
+
+	/**
+	 * called at the start of every server tick to measure it and adjust the budget
+	 *
+	 * @param now the time the tick started, from System.nanoTime
+	 * @param backlog the amount of changes waiting to be made
+	 */
+	public void tick(long now, int backlog) {
+		long last = lastTick;
+		lastTick = now;
+		if(last == 0)
+			return;
+
+		//smooth the tick length out so a single slow tick doesn't swing the budget
+		tickTime += ((now - last) - tickTime) * 0.1;
+		if(!adaptive)
+			return;
+
+		if(tickTime > targetTickTime) {
+			//the server is behind, back off quickly
+			runTime = Math.max(minRunTime, runTime * 3 / 4);
+		} else if(backlog > 0) {
+			//the server is keeping up and there is work, use a bit more of the tick
+			runTime = Math.min(maxRunTime, runTime + step);
+		}
+	}
+
+	/**
+	 * gets the amount of time the block changer may run for this tick
+	 *
+	 * @return the budget in nano-seconds
+	 */
+	public long getRunTime() {
+		return runTime;
+	}
+
+	/**
+	 * checks to see if the budget adapts
+	 *
+	 * @return whether or not the budget is in adaptive mode
+	 */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * gets the measured ticks per second
+	 *
+	 * @return the averaged ticks per second of the server
+	 */
+	public double getTps() {
+		return SECOND / tickTime;
+	}
+}
@@ -0,0 +1,12 @@
+# builds the headless simulator in sim/ and replays a flood with a fluid
+# usage: ./sim.sh fluid.jar fluidClass [ticks] [size] [threads] [maxMs]
+# needs ../Bukkit.jar, the fluid's jar is the first argument
+# exits with 1 if the flood doesn't settle or the block changer goes over maxMs/tick
+FLUID=$1
+shift
+mkdir -p sim/classes
+javac -cp "../Bukkit.jar:$FLUID" -d sim/classes mindless728/FluidFlow/*.java sim/mindless728/FluidFlow/*.java
+java -cp "sim/classes:../Bukkit.jar:$FLUID" mindless728.FluidFlow.FloodScenario "$@"
+STATUS=$?
+rm -r sim/classes
+exit $STATUS
@@ -0,0 +1,109 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.util.config.Configuration;
+
+import java.io.File;
+
+/**
+ * replays a flood on a flat stone world with a fluid loaded by class name and
+ * prints how the simulation ran
+ *
+ * usage: FloodScenario fluidClass [ticks] [size] [threads] [maxMs]
+ *   ticks the most ticks to run, default 2000
+ *   size the width of the stone floor, default 128
+ *   threads the fluid threads to use, default 0 runs them on the simulation's thread
+ *   maxMs the most block changer ms/tick on average, default 0 for no limit
+ *
+ * exits with 1 if the flood didn't settle within the ticks or the block changer
+ * went over maxMs, so a build can run it as a check
+ *
+ * @author mindless728
+ */
+public class FloodScenario {
+	/**
+	 * runs the scenario
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		VoxelWorld world;
+		Simulation sim;
+		Fluid fluid;
+		FlowExecutor executor = null;
+		Configuration config, fluidConfig;
+		int ticks = 2000, size = 128, threads = 0;
+		double maxMs = 0;
+		boolean passed;
+		long start;
+
+		if(args.length < 1) {
+			System.out.println("usage: FloodScenario fluidClass [ticks] [size] [threads] [maxMs]");
+			return;
+		}
+		if(args.length > 1)
+			ticks = Integer.parseInt(args[1]);
+		if(args.length > 2)
+			size = Integer.parseInt(args[2]);
+		if(args.length > 3)
+			threads = Integer.parseInt(args[3]);
+		if(args.length > 4)
+			maxMs = Double.parseDouble(args[4]);
+
+		//a stone floor with walls around it up to the height the fluid is poured from
+		world = new VoxelWorld("flood");
+		world.fill(0, 0, 0, size - 1, 63, size - 1, 1);
+		world.fill(-1, 64, -1, size, 80, -1, 1);
+		world.fill(-1, 64, size, size, 80, size, 1);
+		world.fill(-1, 64, -1, -1, 80, size, 1);
+		world.fill(size, 64, -1, size, 80, size, 1);
+
+		config = configuration("FloodScenario");
+		if(threads > 0)
+			executor = new FlowExecutor(threads);
+		sim = new Simulation(world, config, executor);
+
+		fluid = (Fluid)Class.forName(args[0]).newInstance();
+		fluidConfig = configuration(args[0]);
+		sim.addFluid(fluid, fluidConfig);
+
+		//pour a 3x3 column of the fluid into the middle
+		for(int x = -1; x <= 1; ++x)
+			for(int z = -1; z <= 1; ++z)
+				sim.place(size / 2 + x, 80, size / 2 + z, fluid.getMaterial());
+
+		start = System.nanoTime();
+		sim.runUntilSettled(ticks);
+		System.out.println("wall time ms: "+(System.nanoTime() - start) / 1000000);
+		System.out.print(sim.report());
+
+		//check the run against the limits
+		passed = sim.isSettled() && (maxMs <= 0 || sim.getChangerMsPerTick() <= maxMs);
+		if(!sim.isSettled())
+			System.out.println("**** ERROR! the flood did not settle within "+ticks+" ticks ****");
+		else if(!passed)
+			System.out.println("**** ERROR! the block changer took "+sim.getChangerMsPerTick()+"ms/tick, over the limit of "+maxMs+"ms ****");
+
+		sim.close();
+		if(executor != null)
+			executor.shutdown();
+		if(!passed)
+			System.exit(1);
+	}
+
+	/**
+	 * creates an empty configuration in a throw away file
+	 *
+	 * @param name the name to give the file
+	 *
+	 * @return the configuration
+	 */
+	private static Configuration configuration(String name) throws Exception {
+		File file = File.createTempFile(name, ".yml");
+		Configuration ret;
+
+		file.deleteOnExit();
+		ret = new Configuration(file);
+		ret.load();
+		return ret;
+	}
+}
@@ -0,0 +1,61 @@
+package mindless728.FluidFlow;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * an executor that only runs its tasks when told to, on the thread that tells it,
+ * so a simulation runs the fluids the same way every time
+ *
+ * @author mindless728
+ */
+public class ManualExecutor implements Executor {
+	/** the tasks waiting to run */
+	private LinkedList<Runnable> tasks;
+
+	/** default constructor */
+	public ManualExecutor() {
+		tasks = new LinkedList<Runnable>();
+	}
+
+	/**
+	 * queues a task to run on the next call to runPending
+	 *
+	 * @param task the task to run
+	 */
+	public synchronized void execute(Runnable task) {
+		tasks.add(task);
+	}
+
+	/**
+	 * runs the tasks that were waiting when this was called, tasks they queue wait
+	 * for the next call
+	 *
+	 * @return the amount of tasks run
+	 */
+	public int runPending() {
+		int count;
+		Runnable task;
+
+		synchronized(this) {
+			count = tasks.size();
+		}
+
+		for(int i = 0; i < count; ++i) {
+			synchronized(this) {
+				task = tasks.remove();
+			}
+			task.run();
+		}
+		return count;
+	}
+
+	/**
+	 * checks to see if there are tasks waiting
+	 *
+	 * @return whether or not there are tasks waiting to run
+	 */
+	public synchronized boolean isEmpty() {
+		return tasks.isEmpty();
+	}
+}
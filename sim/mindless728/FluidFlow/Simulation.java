@@ -0,0 +1,290 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.util.config.Configuration;
+
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * runs fluids against a VoxelWorld without a server, the block changer is run
+ * once per tick() the way the server's scheduler would
+ *
+ * with the default manual executor the fluids' batches run on the simulation's
+ * thread at the start of each tick, so the same scenario always ends the same way,
+ * with a FlowExecutor they run on their own threads like on a server
+ *
+ * only one simulation can run at a time since the fluids share the chunk cache
+ *
+ * @author mindless728
+ */
+public class Simulation {
+	/** the world the fluids flow in */
+	private VoxelWorld world;
+
+	/** the configuration the block changer reads its settings from */
+	private Configuration config;
+
+	/** the mapping from fluid to its changed block object */
+	private HashMap<Fluid, ChangedBlocks> changedBlocks;
+
+	/** the mapping from materials to their fluid */
+	private HashMap<Material, Fluid> fluids;
+
+	/** the executor the fluids run on */
+	private Executor executor;
+
+	/** the executor the fluids run on when running the same way every time, null otherwise */
+	private ManualExecutor manual;
+
+	/** the copies of the chunks the fluids read from */
+	private ChunkCache cache;
+
+	/** the block changer run every tick */
+	private BlockChanger changer;
+
+	/** the amount of ticks run */
+	private int ticks;
+
+	/** the time spent in the block changer in nano-seconds */
+	private long changerTime;
+
+	/** the longest tick of the block changer in nano-seconds */
+	private long maxChangerTime;
+
+	/** the time spent running the fluids' batches in nano-seconds, only with the manual executor */
+	private long flowTime;
+
+	/** the changes the world had when the simulation started */
+	private long startChanges;
+
+	/**
+	 * Constructor that runs the fluids the same way every time
+	 *
+	 * @param w the world the fluids flow in
+	 * @param c the configuration the block changer reads its settings from
+	 */
+	public Simulation(VoxelWorld w, Configuration c) {
+		this(w, c, null);
+	}
+
+	/**
+	 * Constructor taking the executor to run the fluids on
+	 *
+	 * @param w the world the fluids flow in
+	 * @param c the configuration the block changer reads its settings from
+	 * @param e the executor to run the fluids on, null to run them on the simulation's thread
+	 */
+	public Simulation(VoxelWorld w, Configuration c, Executor e) {
+		world = w;
+		config = c;
+		changedBlocks = new HashMap<Fluid, ChangedBlocks>();
+		fluids = new HashMap<Material, Fluid>();
+
+		if(e == null)
+			e = manual = new ManualExecutor();
+		executor = e;
+
+		cache = new ChunkCache(config.getInt("ChunkCache.waitTime", 250), config.getInt("ChunkCache.maxAge", 100));
+		Fluid.setChunkCache(cache);
+		changer = new BlockChanger(changedBlocks, config, cache);
+		startChanges = world.getChangeCount();
+	}
+
+	/**
+	 * starts a fluid in the simulation
+	 *
+	 * @param fluid the fluid to start
+	 * @param c the configuration of the fluid
+	 */
+	public void addFluid(Fluid fluid, Configuration c) {
+		ChangedBlocks temp = new ChangedBlocks();
+
+		changedBlocks.put(fluid, temp);
+		fluids.put(normalize(fluid.getMaterial()), fluid);
+		fluid.enable(temp, c, executor);
+	}
+
+	/**
+	 * places a block of a fluid's material and lets the fluid flow from it
+	 *
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @param z the z coordinate of the block
+	 * @param type the material to place
+	 */
+	public void place(int x, int y, int z, Material type) {
+		Fluid fluid = fluids.get(normalize(type));
+
+		world.fill(x, y, z, x, y, z, type.getId());
+		cache.invalidate(BlockKey.getChunkKey(BlockKey.pack(BlockKey.getWorldId(world.getWorld()), x, y, z)));
+		if(fluid != null)
+			fluid.addFlow(new FluidBlock(new Location(world.getWorld(), x, y, z)));
+	}
+
+	/**
+	 * unloads a chunk like the server would, the fluids stop reading it and its
+	 * changes wait for it to load
+	 *
+	 * @param cx the x coordinate of the chunk
+	 * @param cz the z coordinate of the chunk
+	 */
+	public void unloadChunk(int cx, int cz) {
+		world.setLoaded(cx, cz, false);
+		changer.chunkUnloaded(BlockKey.packChunk(BlockKey.getWorldId(world.getWorld()), cx, cz));
+	}
+
+	/**
+	 * loads a chunk like the server would, the changes and flows waiting on it are put back
+	 *
+	 * @param cx the x coordinate of the chunk
+	 * @param cz the z coordinate of the chunk
+	 */
+	public void loadChunk(int cx, int cz) {
+		world.setLoaded(cx, cz, true);
+		changer.chunkLoaded(BlockKey.packChunk(BlockKey.getWorldId(world.getWorld()), cx, cz));
+	}
+
+	/** runs a server tick, the fluids' waiting batches then the block changer */
+	public void tick() {
+		long start;
+
+		if(manual != null) {
+			start = System.nanoTime();
+			manual.runPending();
+			flowTime += System.nanoTime() - start;
+		}
+
+		start = System.nanoTime();
+		changer.run();
+		start = System.nanoTime() - start;
+
+		changerTime += start;
+		maxChangerTime = Math.max(maxChangerTime, start);
+		++ticks;
+	}
+
+	/**
+	 * runs ticks until nothing is flowing or changing
+	 *
+	 * @param maxTicks the most ticks to run
+	 *
+	 * @return the amount of ticks run
+	 */
+	public int runUntilSettled(int maxTicks) {
+		int ret = 0;
+		while(ret < maxTicks && !isSettled()) {
+			tick();
+			++ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * checks to see if the fluids have no flows left and all of the changes are made
+	 *
+	 * @return whether or not the simulation has settled
+	 */
+	public boolean isSettled() {
+		if(manual != null && !manual.isEmpty())
+			return false;
+		for(Fluid f : changedBlocks.keySet())
+			if(f.hasFlows() || !changedBlocks.get(f).isEmpty())
+				return false;
+		return true;
+	}
+
+	/** stops the fluids and lets go of the chunk cache */
+	public void close() {
+		for(Fluid f : changedBlocks.keySet())
+			f.halt();
+		if(manual != null)
+			while(!manual.isEmpty())
+				manual.runPending();
+		for(Fluid f : changedBlocks.keySet()) {
+			f.stop();
+			f.closeJournal();
+		}
+
+		Fluid.setChunkCache(null);
+		cache.close();
+	}
+
+	/**
+	 * @return the world the fluids flow in
+	 */
+	public VoxelWorld getWorld() {
+		return world;
+	}
+
+	/**
+	 * @return the block changer run every tick
+	 */
+	public BlockChanger getBlockChanger() {
+		return changer;
+	}
+
+	/**
+	 * @return the amount of ticks run
+	 */
+	public int getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * @return the amount of blocks changed in the world since the simulation started
+	 */
+	public long getChangesApplied() {
+		return world.getChangeCount() - startChanges;
+	}
+
+	/**
+	 * @return the average time the block changer took each tick in milli-seconds
+	 */
+	public double getChangerMsPerTick() {
+		return ticks > 0 ? changerTime / ticks / 1000000.0 : 0;
+	}
+
+	/**
+	 * describes how the simulation ran
+	 *
+	 * @return the ticks, the blocks changed and the time spent
+	 */
+	public String report() {
+		double seconds = changerTime / 1000000000.0;
+		StringBuilder ret = new StringBuilder();
+
+		ret.append("ticks: ").append(ticks).append('\n');
+		ret.append("blocks changed: ").append(getChangesApplied()).append('\n');
+		ret.append("blocks/sec of block changer time: ").append(seconds > 0 ? (long)(getChangesApplied() / seconds) : 0).append('\n');
+		ret.append("block changer ms/tick: avg ").append(getChangerMsPerTick());
+		ret.append(", max ").append(maxChangerTime / 1000000.0).append('\n');
+		if(manual != null)
+			ret.append("flow ms/tick: avg ").append(ticks > 0 ? flowTime / ticks / 1000000.0 : 0).append('\n');
+		for(Fluid f : changedBlocks.keySet())
+			ret.append(f.getMaterial()).append(": ").append(f.getFlowCount()).append(" flows waiting, ")
+			   .append(changedBlocks.get(f).size()).append(" changes waiting, ")
+			   .append(f.getDuplicateFlowCount()).append(" duplicate flows dropped, change latency ms p50 ")
+			   .append(f.getMetrics().getLatencyP50()).append(" p99 ").append(f.getMetrics().getLatencyP99())
+			   .append(" max ").append(f.getMetrics().getLatencyMax()).append('\n');
+		if(!world.getUnhandled().isEmpty())
+			ret.append("calls the world doesn't model: ").append(world.getUnhandled()).append('\n');
+		return ret.toString();
+	}
+
+	/**
+	 * treats the stationary fluids the same as the flowing ones, like FluidFlow does
+	 *
+	 * @param type the material
+	 *
+	 * @return the flowing material for stationary fluids, the material otherwise
+	 */
+	private static Material normalize(Material type) {
+		if(type == Material.STATIONARY_WATER)
+			return Material.WATER;
+		else if(type == Material.STATIONARY_LAVA)
+			return Material.LAVA;
+		return type;
+	}
+}
@@ -0,0 +1,343 @@
+package mindless728.FluidFlow;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * an in-memory world for the simulator and the benchmarks, the World, Chunk, Block
+ * and ChunkSnapshot objects it hands out are proxies so it works against any version
+ * of the Bukkit API without a server, only the methods FluidFlow uses do anything,
+ * any other method returns null, 0 or false and is noted so the report can list it
+ *
+ * every chunk starts out loaded and as air, chunks can be marked unloaded to see
+ * how the fluids wait for them
+ *
+ * @author mindless728
+ */
+public class VoxelWorld implements InvocationHandler {
+	/** the height of the world */
+	public static final int HEIGHT = 128;
+
+	/** the name of the world */
+	private String name;
+
+	/** the proxy handed out as the world */
+	private World world;
+
+	/** the block type ids of the chunks, indexed by (x << 11) | (z << 7) | y */
+	private LongObjectMap<byte[]> chunks;
+
+	/** the amount of blocks set through the proxies */
+	private long changes;
+
+	/** the chunks marked unloaded, by the chunk key with world id 0 */
+	private LongIntMap unloaded;
+
+	/** the methods called on the proxies that the world doesn't do anything for */
+	private Set<String> unhandled;
+
+	/**
+	 * Constructor taking the name of the world
+	 *
+	 * @param n the name of the world
+	 */
+	public VoxelWorld(String n) {
+		name = n;
+		chunks = new LongObjectMap<byte[]>();
+		unloaded = new LongIntMap();
+		unhandled = Collections.synchronizedSet(new TreeSet<String>());
+		world = (World)Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] {World.class}, this);
+	}
+
+	/**
+	 * @return the proxy to use as the world
+	 */
+	public World getWorld() {
+		return world;
+	}
+
+	/**
+	 * @return the amount of blocks that have been set through the proxies
+	 */
+	public long getChangeCount() {
+		return changes;
+	}
+
+	/**
+	 * gets the type id of a block
+	 *
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @param z the z coordinate of the block
+	 *
+	 * @return the type id of the block
+	 */
+	public int getTypeId(int x, int y, int z) {
+		if(y < 0 || y >= HEIGHT)
+			return 0;
+		return getChunk(x >> 4, z >> 4)[index(x, y, z)] & 0xFF;
+	}
+
+	/**
+	 * sets the type id of a block
+	 *
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @param z the z coordinate of the block
+	 * @param id the new type id of the block
+	 */
+	public void setTypeId(int x, int y, int z, int id) {
+		if(y < 0 || y >= HEIGHT)
+			return;
+		getChunk(x >> 4, z >> 4)[index(x, y, z)] = (byte)id;
+		++changes;
+	}
+
+	/**
+	 * sets the type id of every block in a box without counting them as changes,
+	 * for building the world before a simulation
+	 *
+	 * @param x1 the lowest x coordinate of the box
+	 * @param y1 the lowest y coordinate of the box
+	 * @param z1 the lowest z coordinate of the box
+	 * @param x2 the highest x coordinate of the box
+	 * @param y2 the highest y coordinate of the box
+	 * @param z2 the highest z coordinate of the box
+	 * @param id the type id to fill the box with
+	 */
+	public void fill(int x1, int y1, int z1, int x2, int y2, int z2, int id) {
+		y1 = Math.max(y1, 0);
+		y2 = Math.min(y2, HEIGHT - 1);
+		for(int x = x1; x <= x2; ++x)
+			for(int z = z1; z <= z2; ++z)
+				for(int y = y1; y <= y2; ++y)
+					getChunk(x >> 4, z >> 4)[index(x, y, z)] = (byte)id;
+	}
+
+	/**
+	 * marks a chunk loaded or unloaded, the blocks can still be read and set
+	 * directly but isChunkLoaded tells the plugin it isn't there
+	 *
+	 * @param cx the x coordinate of the chunk
+	 * @param cz the z coordinate of the chunk
+	 * @param loaded whether or not the chunk is loaded
+	 */
+	public void setLoaded(int cx, int cz, boolean loaded) {
+		if(loaded)
+			unloaded.remove(BlockKey.packChunk(0, cx, cz));
+		else
+			unloaded.put(BlockKey.packChunk(0, cx, cz), 1);
+	}
+
+	/**
+	 * gets the methods called on the proxies that the world doesn't do anything for
+	 *
+	 * @return the names of the methods, as Proxy.method
+	 */
+	public ArrayList<String> getUnhandled() {
+		synchronized(unhandled) {
+			return new ArrayList<String>(unhandled);
+		}
+	}
+
+	/**
+	 * handles the calls made to the world proxy
+	 */
+	public Object invoke(Object proxy, Method m, Object[] args) {
+		String method = m.getName();
+
+		if(method.equals("getBlockAt")) {
+			if(args.length == 1) {
+				Location l = (Location)args[0];
+				return block(l.getBlockX(), l.getBlockY(), l.getBlockZ());
+			}
+			return block((Integer)args[0], (Integer)args[1], (Integer)args[2]);
+		} else if(method.equals("getBlockTypeIdAt")) {
+			return getTypeId((Integer)args[0], (Integer)args[1], (Integer)args[2]);
+		} else if(method.equals("getChunkAt")) {
+			return chunk((Integer)args[0], (Integer)args[1]);
+		} else if(method.equals("isChunkLoaded")) {
+			return !unloaded.containsKey(BlockKey.packChunk(0, (Integer)args[0], (Integer)args[1]));
+		} else if(method.equals("refreshChunk")) {
+			return Boolean.TRUE;
+		} else if(method.equals("getName")) {
+			return name;
+		}
+		return object(proxy, m, args, "VoxelWorld["+name+"]", "World");
+	}
+
+	/**
+	 * creates the proxy for a block
+	 *
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @param z the z coordinate of the block
+	 *
+	 * @return the block proxy
+	 */
+	public Block block(final int x, final int y, final int z) {
+		return (Block)Proxy.newProxyInstance(Block.class.getClassLoader(), new Class<?>[] {Block.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				String method = m.getName();
+
+				if(method.equals("getType"))
+					return ChangedBlocks.getMaterial(getTypeId(x, y, z));
+				else if(method.equals("getTypeId"))
+					return getTypeId(x, y, z);
+				else if(method.equals("setType")) {
+					setTypeId(x, y, z, ((Material)args[0]).getId());
+					return null;
+				} else if(method.startsWith("setTypeId")) {
+					setTypeId(x, y, z, (Integer)args[0]);
+					return Boolean.TRUE;
+				} else if(method.equals("getRelative") && args.length == 1) {
+					BlockFace f = (BlockFace)args[0];
+					return block(x + f.getModX(), y + f.getModY(), z + f.getModZ());
+				} else if(method.equals("getLocation"))
+					return new Location(world, x, y, z);
+				else if(method.equals("getWorld"))
+					return world;
+				else if(method.equals("getChunk"))
+					return chunk(x >> 4, z >> 4);
+				else if(method.equals("getX"))
+					return x;
+				else if(method.equals("getY"))
+					return y;
+				else if(method.equals("getZ"))
+					return z;
+				return object(proxy, m, args, "FakeBlock["+x+","+y+","+z+"]", "Block");
+			}
+		});
+	}
+
+	/**
+	 * creates the proxy for a chunk
+	 *
+	 * @param cx the x coordinate of the chunk
+	 * @param cz the z coordinate of the chunk
+	 *
+	 * @return the chunk proxy
+	 */
+	public Chunk chunk(final int cx, final int cz) {
+		return (Chunk)Proxy.newProxyInstance(Chunk.class.getClassLoader(), new Class<?>[] {Chunk.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				String method = m.getName();
+
+				if(method.equals("getBlock"))
+					return block((cx << 4) + (Integer)args[0], (Integer)args[1], (cz << 4) + (Integer)args[2]);
+				else if(method.equals("getX"))
+					return cx;
+				else if(method.equals("getZ"))
+					return cz;
+				else if(method.equals("getWorld"))
+					return world;
+				else if(method.equals("getChunkSnapshot"))
+					return snapshot(cx, cz);
+				return object(proxy, m, args, "FakeChunk["+cx+","+cz+"]", "Chunk");
+			}
+		});
+	}
+
+	/**
+	 * creates a snapshot of a chunk, a copy of its types at the time of the call
+	 *
+	 * @param cx the x coordinate of the chunk
+	 * @param cz the z coordinate of the chunk
+	 *
+	 * @return the snapshot proxy
+	 */
+	public ChunkSnapshot snapshot(final int cx, final int cz) {
+		final byte[] types = getChunk(cx, cz).clone();
+
+		return (ChunkSnapshot)Proxy.newProxyInstance(ChunkSnapshot.class.getClassLoader(), new Class<?>[] {ChunkSnapshot.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				String method = m.getName();
+
+				if(method.equals("getBlockTypeId"))
+					return types[index((Integer)args[0], (Integer)args[1], (Integer)args[2])] & 0xFF;
+				else if(method.equals("getX"))
+					return cx;
+				else if(method.equals("getZ"))
+					return cz;
+				else if(method.equals("getWorldName"))
+					return name;
+				return object(proxy, m, args, "FakeChunkSnapshot["+cx+","+cz+"]", "ChunkSnapshot");
+			}
+		});
+	}
+
+	/**
+	 * gets the types of a chunk, creating it if it doesn't exist
+	 *
+	 * @param cx the x coordinate of the chunk
+	 * @param cz the z coordinate of the chunk
+	 *
+	 * @return the types of the chunk
+	 */
+	private byte[] getChunk(int cx, int cz) {
+		long key = ((long)cx << 32) | (cz & 0xFFFFFFFFL);
+		byte[] ret = chunks.get(key);
+
+		if(ret == null) {
+			byte[] temp = new byte[16 * 16 * HEIGHT];
+			if((ret = chunks.putIfAbsent(key, temp)) == null)
+				ret = temp;
+		}
+		return ret;
+	}
+
+	/**
+	 * gets the index of a block in its chunk's types
+	 */
+	private static int index(int x, int y, int z) {
+		return ((x & 0xF) << 11) | ((z & 0xF) << 7) | y;
+	}
+
+	/**
+	 * handles the Object methods of a proxy and anything FluidFlow doesn't use, a
+	 * method that isn't modelled is noted and gives back the default of its type
+	 */
+	private Object object(Object proxy, Method m, Object[] args, String desc, String type) {
+		String method = m.getName();
+		Class<?> ret = m.getReturnType();
+
+		if(method.equals("equals"))
+			return proxy == args[0];
+		else if(method.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		else if(method.equals("toString"))
+			return desc;
+
+		unhandled.add(type+"."+method);
+		if(!ret.isPrimitive() || ret == void.class)
+			return null;
+		else if(ret == boolean.class)
+			return Boolean.FALSE;
+		else if(ret == char.class)
+			return Character.valueOf((char)0);
+		else if(ret == byte.class)
+			return Byte.valueOf((byte)0);
+		else if(ret == short.class)
+			return Short.valueOf((short)0);
+		else if(ret == int.class)
+			return Integer.valueOf(0);
+		else if(ret == long.class)
+			return Long.valueOf(0);
+		else if(ret == float.class)
+			return Float.valueOf(0);
+		return Double.valueOf(0);
+	}
+}